@@ -0,0 +1,63 @@
+package bench;
+
+import network.packets.KeepAlive;
+import network.packets.Message;
+import network.packets.Packet;
+import network.packets.Ping;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    // a received packet going through Peer.handle() on the inbound end of a loopback pair, as the reader or event loop calls it
+    //   keepAlive   no-op handler, only the lookup and auth checks
+    //   message     logged to the peer's console
+    //   ping        echoed back; a new one each time, the echo marks it as returning
+
+    @Param({"keepAlive", "message", "ping"})
+    public String packet;
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    private LoopbackNodes nodes;
+    private Supplier<Packet> packets;
+
+    @Setup
+    public void setup() throws Exception {
+        nodes = LoopbackNodes.start(engine);
+
+        packets = switch (packet) {
+            case "keepAlive" -> {
+                KeepAlive keepAlive = new KeepAlive();
+                yield () -> keepAlive;
+            }
+            case "message" -> {
+                Message message = new Message("hey, are you still there? sending the rest of the photos now");
+                yield () -> message;
+            }
+            case "ping" -> Ping::new;
+            default -> throw new IllegalArgumentException("Unknown dispatch case: " + packet);
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        nodes.close();
+    }
+
+    @Benchmark
+    public Packet dispatch() throws IOException {
+        Packet packet = packets.get();
+        nodes.inbound.handle(packet);
+        return packet;
+    }
+}
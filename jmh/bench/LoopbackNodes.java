@@ -0,0 +1,52 @@
+package bench;
+
+import main.Main;
+import network.Peer;
+import processors.PeerInputProcessor;
+
+class LoopbackNodes {
+    // two nodes in this jvm connected over loopback: an outbound peer and the inbound peer it authorized with
+    // Main is static, so there is one pair per jvm; jmh runs every trial in a fork of its own, which starts it once
+    //   -Dbench.port=[port]   inbound port, 47000 by default
+
+    private static final int PORT = Integer.getInteger("bench.port", 47000);
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    final Loopback loopback = new Loopback();
+    Peer outbound;
+    Peer inbound;
+
+    // engine is blocking or nio, for the sockets of both ends
+    static LoopbackNodes start(String engine) throws Exception {
+        LoopbackNodes nodes = new LoopbackNodes();
+        Loopback loopback = nodes.loopback;
+
+        Main.start(loopback);
+        if (engine.equals("nio")) Main.useNio(true, Runtime.getRuntime().availableProcessors());
+
+        Loopback.Expect listening = loopback.expect(null, "Waiting for inbound connections");
+        Main.acceptInbound(PORT);
+        listening.await(CONNECT_TIMEOUT_MILLIS);
+
+        Main.connect("127.0.0.1:" + PORT);
+        for (Peer peer : loopback.awaitPeers(2, CONNECT_TIMEOUT_MILLIS)) {
+            if (peer.isOutbound()) nodes.outbound = peer;
+            else nodes.inbound = peer;
+        }
+
+        new PeerInputProcessor(nodes.inbound).processInput("auth accept");
+        long end = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        while (!nodes.outbound.connectionVerifier().isPeerAuthorized() || !nodes.inbound.connectionVerifier().isPeerAuthorized()) {
+            if (System.currentTimeMillis() > end) throw new IllegalStateException("loopback connection wasnt authorized");
+            Thread.sleep(10);
+        }
+        return nodes;
+    }
+
+    // the peers', server's and event loops' threads would otherwise keep the fork from exiting
+    void close() {
+        outbound.close();
+        Main.endInbound();
+        if (Main.nioEngine() != null) Main.nioEngine().shutdown();
+    }
+}
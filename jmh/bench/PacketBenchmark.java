@@ -0,0 +1,177 @@
+package bench;
+
+import network.compression.Codecs;
+import network.packets.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+    // serialization of every packet type, no sockets: encode is a binary frame built the way PacketWriter does it
+    // (payload, then code + length + payload), decode is create() + read() the way PacketReader does
+    // file chunks are read into a pooled buffer like the nio reader does; sent as file regions they arent encoded at all
+    // one case per packet type, '-p type=MESSAGE' for only one; the bytes counter is frame bytes per second (jmh labels it ops/s)
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Param
+    public PacketType type;
+
+    private Path file; // for the packets that describe a file
+    private Packet packet;
+    private final Frame frame = new Frame();
+
+    private int frameSize;
+    private ByteArrayInputStream bytes;
+    private DataInputStream in;
+    private FileData data; // file chunks are decoded into this, straight from buffer
+    private ByteBuffer buffer;
+
+    // frame bytes per second, next to the ops
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("p2p-bench", ".bin");
+        Files.write(file, new byte[1024 * 1024]);
+
+        packet = sample(type, file);
+        byte[] payload = Frame.payload(packet);
+        frameSize = payload.length + 5;
+
+        bytes = new ByteArrayInputStream(payload);
+        in = new DataInputStream(bytes);
+        if (type.isFileData()) { // like NioConnection
+            data = type == PacketType.FILE_CHUNK ? FileData.withTransferId() : new FileData();
+            buffer = ByteBuffer.wrap(payload);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Frame encode(Bytes counter) throws IOException {
+        counter.bytes += frame.encode(packet);
+        return frame;
+    }
+
+    @Benchmark
+    public Packet decode(Bytes counter) throws IOException {
+        counter.bytes += frameSize;
+
+        if (data != null) {
+            data.read(buffer.clear());
+            data.release();
+            return data;
+        }
+
+        bytes.reset();
+        Packet read = type.create();
+        read.read(in);
+        return read instanceof Compressed compressed ? compressed.inflate() : read; // as Peer.handle() does
+    }
+
+    // something like what each packet carries in practice; a new packet type wont compile until it has one here
+    private static Packet sample(PacketType type, Path file) throws IOException {
+        Random random = new Random(1);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        random.nextBytes(chunk);
+
+        return switch (type) {
+            case PING -> new Ping();
+            case MESSAGE -> new Message("hey, are you still there? sending the rest of the photos now");
+            case ACCEPT -> new Accept();
+            case AUTH -> new Auth("Connection authorized");
+            case KEEP_ALIVE -> new KeepAlive();
+            case FILE_DATA -> new FileData(0, 7, chunk); // older peers, no transfer id
+            case FILE_HEADER -> new FileHeader(1, file, 16 * 1024);
+            case FILE_FOOTER -> new FileFooter(1, new byte[32]);
+            case FILE_RESPONSE -> new FileResponse(1, true, 2, random.nextLong(), new byte[256]);
+            case FILE_REQUEST -> new FileRequest(1, file, 2, 16 * 1024, 4 * 1024 * 1024, random.nextLong(), false);
+            case FILE_CANCEL_UPLOAD -> new FileCancelUpload(1);
+            case FILE_CANCEL_DOWNLOAD -> new FileCancelDownload(1);
+            case HELLO -> new Hello();
+            case FILE_STREAM_JOIN -> new FileStreamJoin(random.nextLong());
+            case FILE_CHUNK -> new FileData(1, 7, chunk);
+            case FOLDER_REQUEST -> new FolderRequest(1, "photos", 3000, 5L * 1024 * 1024 * 1024, 16 * 1024, 4 * 1024 * 1024);
+            case FOLDER_MANIFEST -> {
+                List<FolderManifest.Entry> entries = new ArrayList<>();
+                for (int i = 0; i < FolderManifest.MAX_ENTRIES; i++) {
+                    entries.add(new FolderManifest.Entry("2024/trip/IMG_" + (1000 + i) + ".jpg", 3_500_000 + i, 1_700_000_000_000L + i));
+                }
+                yield new FolderManifest(1, 0, entries);
+            }
+            case FILE_RESEND -> new FileResend(1, random.ints(64, 0, 100_000).toArray());
+            case FILE_COMPLETE -> new FileComplete(1);
+            case DELTA_OFFER -> {
+                int count = 4096;
+                int[] lengths = new int[count];
+                Arrays.fill(lengths, 32 * 1024);
+                byte[][] hashes = new byte[count][32];
+                for (byte[] hash : hashes) {
+                    random.nextBytes(hash);
+                }
+                yield new DeltaOffer(1, false, lengths, hashes);
+            }
+            case DELTA_REPLY -> new DeltaReply(1, new byte[512]);
+            case COMPRESSION -> new Compression(Codecs.names());
+            case COMPRESSED -> Compressed.compress(Codecs.choose(Codecs.names()), new Message("the same few words over and over again ".repeat(50)));
+            case FILE_CREDIT -> new FileCredit(1, 4 * 1024 * 1024);
+        };
+    }
+
+    // reusable buffers for one binary frame, see PacketWriter.writeFrame()
+    private static class Frame {
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        private final DataOutputStream payloadOut = new DataOutputStream(payload);
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        private final DataOutputStream frameOut = new DataOutputStream(frame);
+
+        int encode(Packet packet) throws IOException {
+            payload.reset();
+            packet.write(payloadOut);
+
+            frame.reset();
+            frameOut.writeByte(packet.getType().getCode());
+            frameOut.writeInt(payload.size());
+            payload.writeTo(frameOut);
+            return frame.size();
+        }
+
+        static byte[] payload(Packet packet) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            packet.write(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import processors.PeerInputProcessor;
+import util.FileUtil;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TransferBenchmark {
+    // a whole file sent outbound -> inbound over a loopback pair: request, accept, chunks, verify, written to the
+    // downloads folder. one transfer per op, so the score is ms per file; MB/s is sizeMB * 1000 / score
+    //   -p sizeMB=[MB]      file sent, 256 by default
+    //   -p streams=[0-8]    extra data connections, as cmd 'file streams'
+
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final long MIN_TRANSFER_TIMEOUT_MILLIS = 60000;
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param("256")
+    public int sizeMB;
+
+    @Param("0")
+    public int streams;
+
+    private LoopbackNodes nodes;
+    private PeerInputProcessor inboundInput;
+    private Path file;
+    private Path target;
+    private long timeoutMillis;
+
+    @Setup
+    public void setup() throws Exception {
+        nodes = LoopbackNodes.start(engine);
+        if (streams > 0) new PeerInputProcessor(nodes.outbound).processInput("file streams " + streams);
+        inboundInput = new PeerInputProcessor(nodes.inbound);
+
+        long size = (long) sizeMB * 1024 * 1024;
+        file = Files.createTempFile("p2p-bench", ".bin");
+        try (OutputStream out = Files.newOutputStream(file)) { // random so compression cant shrink it
+            Random random = new Random(1);
+            byte[] block = new byte[1024 * 1024];
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        target = FileUtil.getDownloadsDir().resolve(file.getFileName());
+        timeoutMillis = Math.max(MIN_TRANSFER_TIMEOUT_MILLIS, size / 1000); // at least 1MB/s
+    }
+
+    // otherwise it would resume, or be a delta
+    @Setup(Level.Invocation)
+    public void deleteTarget() throws Exception {
+        Files.deleteIfExists(target);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        nodes.close();
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void transfer() throws Exception {
+        Loopback.Expect requested = nodes.loopback.expect(nodes.inbound, "Peer requested file transfer");
+        Loopback.Expect downloaded = nodes.loopback.expect(nodes.inbound, "File downloaded successfully");
+
+        nodes.outbound.fileProcessor().uploadFile(file);
+        requested.await(REQUEST_TIMEOUT_MILLIS);
+        inboundInput.processInput("file accept");
+        downloaded.await(timeoutMillis);
+    }
+}
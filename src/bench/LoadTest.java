@@ -0,0 +1,276 @@
+package bench;
+
+import main.Main;
+import network.Peer;
+import network.packets.Message;
+import network.packets.Ping;
+import processors.PeerInputProcessor;
+import util.ChunkBitmap;
+import util.FileUtil;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadTest {
+    // load generator, run with 'java bench.LoadTest'; finds where a node stops keeping up as peers are added
+    // a node in this jvm opens a port with 'auth auto', then N synthetic peers (ordinary outbound Peers, also in this
+    // jvm) connect to it over loopback and go through Accept/Auth like anyone else would. once they're in, every
+    // synthetic peer sends messages and pings at a fixed rate and a few of them keep uploading files
+    // every few seconds it reports what the node got through, ping round trips (send to echo logged, so including
+    // the node's dispatch and both transports), threads and heap; both ends live in this jvm so threads and heap are
+    // for the two together, and virtual threads ('threads virtual') arent in the thread count
+    //   -Dload.peers=[n]            synthetic peers, 200 by default
+    //   -Dload.engine=[blocking/nio] sockets for both ends, blocking by default
+    //   -Dload.port=[port]          node's port, 47100 by default
+    //   -Dload.seconds=[s]          how long traffic runs once everyone is connected, 30 by default
+    //   -Dload.messages=[n]         messages per second per peer, 1 by default (0 for none)
+    //   -Dload.pings=[n]            pings per second per peer, 1 by default (0 for none)
+    //   -Dload.transfers=[n]        peers uploading files at the same time, one after another; 4 by default
+    //   -Dload.size=[MB]            size of each of those files, 16 by default
+    //   -Dload.report=[s]           seconds between reports, 5 by default
+
+    private static final int PEERS = Integer.getInteger("load.peers", 200);
+    private static final String ENGINE = System.getProperty("load.engine", "blocking");
+    private static final int PORT = Integer.getInteger("load.port", 47100);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final double MESSAGES = Double.parseDouble(System.getProperty("load.messages", "1"));
+    private static final double PINGS = Double.parseDouble(System.getProperty("load.pings", "1"));
+    private static final int TRANSFERS = Integer.getInteger("load.transfers", 4);
+    private static final int SIZE_MB = Integer.getInteger("load.size", 16);
+    private static final int REPORT_SECONDS = Integer.getInteger("load.report", 5);
+
+    private final int CONNECT_TIMEOUT_MILLIS = 60000;
+    private final int TRAFFIC_THREADS = 4;
+    private final int MAX_ERRORS_SHOWN = 10;
+
+    private final Loopback loopback = new Loopback();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private final List<Peer> synthetic = new ArrayList<>(); // outbound ends
+    private final Map<Peer, Queue<Long>> pingsSent = new ConcurrentHashMap<>(); // nanoTime per ping in flight, echoes come back in order
+    private final Map<Peer, Path> uploads = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService traffic = Executors.newScheduledThreadPool(TRAFFIC_THREADS);
+    private final ExecutorService commands = Executors.newSingleThreadExecutor(); // not on a reader thread, thats where lines are logged from
+    private volatile boolean isRunning;
+    private volatile boolean isStopped; // whatever peers log while being torn down isnt part of the run
+
+    // since the last report, and for the whole run
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder transfersDone = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final List<Long> pingNanos = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> allPingNanos = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        try {
+            test.start();
+            test.connect();
+            test.run();
+        } finally {
+            test.cleanUp();
+        }
+        System.exit(0); // peers keep non-daemon threads
+    }
+
+    private void start() throws Exception {
+        Main.start(loopback);
+        loopback.setListener(this::logged);
+        if (ENGINE.equals("nio")) Main.useNio(true, Runtime.getRuntime().availableProcessors());
+        Main.setAutoAuth(true);
+
+        Loopback.Expect listening = loopback.expect(null, "Waiting for inbound connections");
+        Main.acceptInbound(PORT);
+        listening.await(CONNECT_TIMEOUT_MILLIS);
+    }
+
+    private void connect() throws Exception {
+        System.out.println("Connecting " + PEERS + " peers to 127.0.0.1:" + PORT + " (" + ENGINE + ")...");
+        int threadsBefore = threads.getThreadCount();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < PEERS; i++) {
+            Main.connect("127.0.0.1:" + PORT);
+        }
+
+        // each connection gives two peers, both authorized once the node's Auth arrives
+        long end = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        List<Peer> outbound = List.of();
+        while (System.currentTimeMillis() < end) {
+            outbound = loopback.peers().stream().filter(Peer::isOutbound).toList();
+            if (outbound.size() == PEERS && outbound.stream().allMatch(peer -> peer.connectionVerifier().isPeerAuthorized())) break;
+            Thread.sleep(10);
+        }
+
+        for (Peer peer : outbound) {
+            if (peer.connectionVerifier().isPeerAuthorized()) synthetic.add(peer);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d/%d peers authorized in %.2fs (%.0f/s) | %d threads for them | errors %d%n",
+                synthetic.size(), PEERS, seconds, synthetic.size() / seconds, threads.getThreadCount() - threadsBefore, errors.sum());
+        if (synthetic.isEmpty()) throw new IllegalStateException("no peers connected");
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < Math.min(TRANSFERS, synthetic.size()); i++) {
+            Path file = Files.createTempFile("p2p-load-" + i + "-", ".bin");
+            writeRandom(file, (long) SIZE_MB * 1024 * 1024);
+            uploads.put(synthetic.get(i), file);
+        }
+
+        System.out.printf("%8s %6s %10s %10s %9s %9s %10s %8s %8s %7s%n", "time", "peers", "msgs/s", "pings/s", "p50 ms", "p99 ms", "files MB/s", "threads", "heap MB", "errors");
+        isRunning = true;
+        long start = System.nanoTime();
+
+        for (Peer peer : synthetic) {
+            pingsSent.put(peer, new ConcurrentLinkedQueue<>());
+            repeat(MESSAGES, () -> {
+                peer.writePacket(new Message("hey, are you still there? sending the rest of the photos now"));
+                messagesSent.increment();
+            });
+            repeat(PINGS, () -> {
+                pingsSent.get(peer).add(System.nanoTime());
+                peer.writePacket(new Ping());
+            });
+        }
+        uploads.forEach((peer, file) -> peer.fileProcessor().uploadFile(file));
+
+        long received = 0;
+        long transfers = 0;
+        int peakThreads = 0;
+        long peakHeap = 0;
+
+        for (int elapsed = REPORT_SECONDS; elapsed <= SECONDS; elapsed += REPORT_SECONDS) {
+            Thread.sleep(Math.max(0, start + elapsed * 1_000_000_000L - System.nanoTime()) / 1_000_000);
+
+            List<Long> pings;
+            synchronized (pingNanos) {
+                pings = new ArrayList<>(pingNanos);
+                pingNanos.clear();
+            }
+            allPingNanos.addAll(pings);
+
+            long receivedNow = messagesReceived.sum();
+            long transfersNow = transfersDone.sum();
+            int threadCount = threads.getThreadCount();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            peakThreads = Math.max(peakThreads, threadCount);
+            peakHeap = Math.max(peakHeap, heap);
+
+            System.out.printf("%7ds %6d %10.0f %10.0f %9s %9s %10.1f %8d %8d %7d%n", elapsed, connectedPeers(),
+                    (double) (receivedNow - received) / REPORT_SECONDS, (double) pings.size() / REPORT_SECONDS,
+                    percentile(pings, 0.5), percentile(pings, 0.99), (double) (transfersNow - transfers) * SIZE_MB / REPORT_SECONDS,
+                    threadCount, heap / (1024 * 1024), errors.sum());
+
+            received = receivedNow;
+            transfers = transfersNow;
+        }
+
+        isRunning = false;
+        traffic.shutdownNow();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%nTotal | messages %d sent, %d received (%.0f/s) | pings %d, p50 %sms p99 %sms | files %d (%.1f MB/s) | peak %d threads, %dMB heap | errors %d%n",
+                messagesSent.sum(), messagesReceived.sum(), messagesReceived.sum() / seconds, allPingNanos.size(),
+                percentile(allPingNanos, 0.5), percentile(allPingNanos, 0.99), transfersDone.sum(), transfersDone.sum() * SIZE_MB / seconds,
+                peakThreads, peakHeap / (1024 * 1024), errors.sum());
+    }
+
+    // perSecond times a second, spread out so all the peers dont send at the same moment
+    private void repeat(double perSecond, Runnable task) {
+        if (perSecond <= 0) return;
+
+        long periodNanos = (long) (1e9 / perSecond);
+        traffic.scheduleAtFixedRate(() -> {
+            if (isRunning) task.run();
+        }, ThreadLocalRandom.current().nextLong(periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // every line a peer logs, on whichever thread logged it
+    private void logged(Peer peer, String line) {
+        if (isStopped) return;
+
+        if (line.startsWith("Error") || line.contains("timed out")) {
+            errors.increment();
+            if (errors.sum() <= MAX_ERRORS_SHOWN) System.err.println("[" + peer.ip() + "] " + line);
+        }
+
+        if (peer.isOutbound()) {
+            if (line.startsWith("Ping echoed successfully")) {
+                Queue<Long> sent = pingsSent.get(peer);
+                Long sentNanos = sent != null ? sent.poll() : null;
+                if (sentNanos != null) pingNanos.add(System.nanoTime() - sentNanos);
+
+            } else if (line.startsWith("File uploaded successfully")) { // and straight away the next one
+                transfersDone.increment();
+                Path file = uploads.get(peer);
+                if (isRunning && file != null) commands.execute(() -> peer.fileProcessor().uploadFile(file));
+            }
+            return;
+        }
+
+        if (line.startsWith("MSG - ")) {
+            messagesReceived.increment();
+        } else if (line.startsWith("Peer requested file transfer")) {
+            commands.execute(() -> new PeerInputProcessor(peer).processInput("file accept"));
+        }
+    }
+
+    private int connectedPeers() {
+        int count = 0;
+        for (Peer peer : synthetic) {
+            if (!peer.isClosed()) count++;
+        }
+        return count;
+    }
+
+    private static String percentile(List<Long> nanos, double q) {
+        if (nanos.isEmpty()) return "-";
+
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1);
+        return String.format("%.2f", sorted[Math.max(0, index)] / 1e6);
+    }
+
+    private static void writeRandom(Path file, long size) throws Exception {
+        try (OutputStream out = Files.newOutputStream(file)) { // random so compression cant shrink it
+            Random random = new Random(size);
+            byte[] block = new byte[1024 * 1024];
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+    }
+
+    private void cleanUp() throws Exception {
+        isRunning = false;
+        isStopped = true;
+        for (Path file : uploads.values()) {
+            Files.deleteIfExists(file);
+            Path target = FileUtil.getDownloadsDir().resolve(file.getFileName());
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(ChunkBitmap.pathFor(target)); // transfers still going when it stopped
+        }
+    }
+}
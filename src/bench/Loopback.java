@@ -0,0 +1,122 @@
+package bench;
+
+import main.Frontend;
+import main.PeerConsole;
+import network.Peer;
+import util.MainUtil;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+class Loopback implements Frontend {
+    // frontend for nodes run inside a benchmark, both ends of every connection are in this jvm
+    // consoles keep nothing, a line only matters to whoever is waiting for it (expect()) or listening
+    // -Dbench.verbose prints everything logged, as the window would show it
+
+    private static final boolean isVerbose = Boolean.getBoolean("bench.verbose");
+
+    private final List<Peer> peers = new ArrayList<>(); // guarded by this
+    private final List<Expect> expects = new CopyOnWriteArrayList<>();
+    private volatile BiConsumer<Peer, String> listener; // every peer line, on the thread that logged it
+
+    @Override
+    public void logMain(String logText) {
+        if (isVerbose) MainUtil.log(logText); // printed there
+        matched(null, logText);
+    }
+
+    @Override
+    public PeerConsole createConsole(Peer peer) {
+        synchronized (this) {
+            peers.add(peer);
+            notifyAll();
+        }
+
+        return new PeerConsole() {
+            @Override
+            public void log(String logText) {
+                if (isVerbose) MainUtil.log("[" + peer.ip() + (peer.isOutbound() ? " out" : " in") + "] " + logText);
+
+                BiConsumer<Peer, String> listener = Loopback.this.listener;
+                if (listener != null) listener.accept(peer, logText);
+                matched(peer, logText);
+            }
+
+            @Override
+            public void close() {
+                synchronized (Loopback.this) {
+                    peers.remove(peer);
+                }
+            }
+        };
+    }
+
+    @Override
+    public List<Path> chooseFiles() {
+        return List.of();
+    }
+
+    @Override
+    public Path chooseFolder() {
+        return null;
+    }
+
+    void setListener(BiConsumer<Peer, String> listener) {
+        this.listener = listener;
+    }
+
+    synchronized List<Peer> peers() {
+        return new ArrayList<>(peers);
+    }
+
+    // peers get a console once they're accepted, both the outbound and the inbound end
+    synchronized List<Peer> awaitPeers(int count, long timeoutMillis) throws InterruptedException, TimeoutException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (peers.size() < count) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) throw new TimeoutException("only " + peers.size() + " of " + count + " peers connected");
+            wait(left);
+        }
+        return new ArrayList<>(peers);
+    }
+
+    // made before whatever logs the line, so it cant be missed; peer null for the main console
+    Expect expect(Peer peer, String text) {
+        Expect expect = new Expect(peer, text);
+        expects.add(expect);
+        return expect;
+    }
+
+    private void matched(Peer peer, String logText) {
+        for (Expect expect : expects) {
+            if (expect.peer == peer && logText.contains(expect.text)) {
+                expects.remove(expect);
+                expect.line = logText;
+                expect.latch.countDown();
+            }
+        }
+    }
+
+    static class Expect {
+        private final Peer peer;
+        private final String text;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile String line;
+
+        private Expect(Peer peer, String text) {
+            this.peer = peer;
+            this.text = text;
+        }
+
+        String await(long timeoutMillis) throws InterruptedException, TimeoutException {
+            if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) throw new TimeoutException("nothing logged with '" + text + "'");
+            return line;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import network.packets.FileData;
+
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TruncatedUpload {
+    // check for a chunk sent as a file region after its file was cut short, run with 'java bench.TruncatedUpload'
+    // transferTo gives 0 past the end of a file rather than -1, so the chunk has to fail on that instead of being
+    // retried forever; on nio that retry spun the event loop. exits 1 if either way of sending it doesnt throw
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 1000; // transferPart() calls without progress before it counts as spinning
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("p2p-truncated", ".bin");
+        boolean isOk;
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            source.write(ByteBuffer.allocate(4 * CHUNK_SIZE));
+
+            // chunk 1 loses its second half, chunk 3 is gone altogether
+            FileData cutShort = new FileData(1, 1, source, CHUNK_SIZE, CHUNK_SIZE, 0);
+            FileData gone = new FileData(1, 3, source, 3L * CHUNK_SIZE, CHUNK_SIZE, 0);
+            source.truncate(CHUNK_SIZE + CHUNK_SIZE / 2);
+
+            isOk = check("nio, chunk cut short", () -> sendParts(cutShort))
+                    & check("nio, chunk past the end", () -> sendParts(gone))
+                    & check("blocking, chunk cut short", () -> sendWhole(cutShort))
+                    & check("blocking, chunk past the end", () -> sendWhole(gone));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        System.exit(isOk ? 0 : 1);
+    }
+
+    // as NioConnection.flush() does it, a part at a time
+    private static Void sendParts(FileData chunk) throws Exception {
+        WritableByteChannel target = Channels.newChannel(OutputStream.nullOutputStream());
+        long sent = 0;
+        for (int attempts = 0; sent < chunk.getLength(); attempts++) {
+            if (attempts == MAX_ATTEMPTS) throw new IllegalStateException("no progress after " + MAX_ATTEMPTS + " attempts at " + sent + " bytes");
+            sent += chunk.transferPart(target, sent);
+        }
+        throw new IllegalStateException("whole chunk sent");
+    }
+
+    // as PacketWriter does it
+    private static Void sendWhole(FileData chunk) throws Exception {
+        chunk.transferTo(Channels.newChannel(OutputStream.nullOutputStream()));
+        throw new IllegalStateException("whole chunk sent");
+    }
+
+    private static boolean check(String name, Callable<Void> send) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Void> result = executor.submit(send);
+        String outcome = null; // null once it failed the right way
+        try {
+            result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EOFException) System.out.println("OK      " + name + ": " + e.getCause().getMessage());
+            else outcome = e.getCause().toString();
+        } catch (TimeoutException _) {
+            outcome = "still sending after " + TIMEOUT_MILLIS + "ms";
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (outcome != null) System.out.println("FAILED  " + name + ": " + outcome);
+        return outcome == null;
+    }
+}
@@ -1,23 +1,22 @@
 package gui;
 
+import main.PeerConsole;
 import processors.InputProcessor;
 import processors.MainInputProcessor;
 import processors.PeerInputProcessor;
 import network.Peer;
 import util.MainUtil;
 
-import javax.swing.*;
-
-public class Console {
+public class Console implements PeerConsole {
     private final Window window;
-    private final JTextArea console;
+    private final ConsoleModel console;
     private final InputProcessor inputProcessor;
     private final String name;
 
     // a tab in the main window which holds a console, inputs, for main console OR for connected peers
     // do NOT create via the constructor, use Window.createConsole();
 
-    public Console(Window window, JTextArea console, JTextField input, String name, Peer peer) {
+    Console(Window window, ConsoleModel console, String name, Peer peer) {
         this.window = window;
         this.console = console;
         this.name = name;
@@ -30,21 +29,21 @@ public class Console {
         } else {
             inputProcessor = new MainInputProcessor();
         }
+    }
 
-        input.addActionListener(e -> {
-            String text = input.getText();
-            log("> " + text);
-            input.setText("");
-            inputProcessor.processInput(text);
-        });
+    // a line typed into the tab's input, on the edt
+    void processInput(String text) {
+        log("> " + text);
+        inputProcessor.processInput(text);
     }
 
+    // any thread, the line shows up with the console's next flush; see ConsoleModel
     public void log(String logText) {
-        console.append(MainUtil.getLocalTime() + " | " + logText + "\n");
-        MainUtil.log(logText);
+        console.log(MainUtil.log(logText));
     }
 
     public void close() {
+        console.close();
         window.removeConsole(this);
     }
 }
@@ -0,0 +1,89 @@
+package gui;
+
+import javax.swing.*;
+import java.io.Serial;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class ConsoleModel extends AbstractListModel<String> {
+    // lines shown in a console, one row per line
+    // log() can be called from any thread and only queues the line; a swing timer moves everything queued onto
+    // the list every 50ms, so a chatty peer costs the edt one update per flush rather than one per line
+    // only the last MAX_LINES are kept, the oldest are dropped from the top (the log file still has them)
+
+    @Serial
+    private static final long serialVersionUID = 1L; // swing models are serializable, this one is never written out
+
+    private static final int MAX_LINES = 10_000;
+    private static final int FLUSH_MILLIS = 50;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final Timer timer;
+    private volatile boolean isClosed; // a peer can still log after its console is gone
+    private transient Runnable onFlush; // scrolls to the bottom, see Window
+    private int longestLine; // in chars, the list's width comes from it rather than from measuring every row
+
+    // only used on the edt; ring buffer, line i is at (start + i) % MAX_LINES
+    private final String[] lines = new String[MAX_LINES];
+    private int start;
+    private int size;
+
+    ConsoleModel() {
+        timer = new Timer(FLUSH_MILLIS, _ -> flush());
+        timer.start();
+    }
+
+    void log(String text) {
+        if (isClosed) return;
+
+        for (String line : text.split("\n")) { // cmdIndent output is several lines
+            pending.add(line);
+        }
+    }
+
+    int getLongestLine() {
+        return longestLine;
+    }
+
+    void setOnFlush(Runnable onFlush) {
+        this.onFlush = onFlush;
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) return;
+
+        int before = size;
+        int removed = 0;
+        String line;
+        while ((line = pending.poll()) != null) {
+            if (size == MAX_LINES) {
+                start = (start + 1) % MAX_LINES;
+                size--;
+                removed++;
+            }
+            lines[(start + size) % MAX_LINES] = line;
+            size++;
+            longestLine = Math.max(longestLine, line.length());
+        }
+
+        // rows only go from the top and come in at the bottom; lines that came and went in the same flush dont count
+        int removedBefore = Math.min(removed, before);
+        if (removedBefore > 0) fireIntervalRemoved(this, 0, removedBefore - 1);
+        fireIntervalAdded(this, before - removedBefore, size - 1);
+        if (onFlush != null) onFlush.run();
+    }
+
+    void close() {
+        isClosed = true;
+        timer.stop();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(start + index) % MAX_LINES];
+    }
+}
@@ -1,18 +1,21 @@
 package gui;
 
+import main.Frontend;
 import network.Peer;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-public class Window {
+public class Window implements Frontend {
     private static JTabbedPane tabs;
     private static Console mainConsole;
-    private static Map<Console, Integer> activeConsoles = new HashMap<>(); // <Console, tabIndex> -> used for removing consoles later
+    private static Map<Console, JPanel> activeConsoles = new HashMap<>(); // <Console, tab> -> used for removing consoles later, edt only
 
     private static final Color bg = new Color(0x1E1E1E);   // background
     private static final Color fg = new Color(0xCFCFCF);   // text
@@ -36,77 +39,105 @@ public class Window {
     }
 
     public void createMainConsole() {
-        try { // run on EDT, wont be null when trying to log
-            SwingUtilities.invokeAndWait(() -> mainConsole = createConsole("Main"));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        mainConsole = buildConsole("Main", null);
     }
 
+    @Override
     public void logMain(String logText) {
         mainConsole.log(logText);
     }
 
+    // any thread; the console takes lines straight away and shows them once its tab is added on the edt,
+    // so a peer's reader never waits on the edt to connect
     private Console buildConsole(String name, Peer peer) {
         if (peer == null && mainConsole != null) return null;
 
-        JPanel panel = new JPanel(new BorderLayout());
+        ConsoleModel console = new ConsoleModel();
+        Console newConsole = new Console(this, console, name, peer);
+        SwingUtilities.invokeLater(() -> addTab(newConsole, console, name));
+        return newConsole;
+    }
 
-        JTextArea console = new JTextArea();
-        console.setEditable(false);
-        console.setFont(new Font("Monospaced", Font.PLAIN, 14));
-        console.setForeground(fg);
-        console.setBackground(bg);
-        console.setBorder(BorderFactory.createLineBorder(new Color(0x3A3A3A)));
+    private void addTab(Console newConsole, ConsoleModel console, String name) {
+        JPanel panel = new JPanel(new BorderLayout());
 
-        JScrollPane scroll = new JScrollPane(console);
+        // only the rows in view are painted; every row is the same height and the width comes from the longest
+        // line, so the list never measures all of them (font is monospaced)
+        JList<String> lines = new JList<>(console);
+        Font font = new Font("Monospaced", Font.PLAIN, 14);
+        FontMetrics metrics = lines.getFontMetrics(font);
+        lines.setFont(font);
+        lines.setForeground(fg);
+        lines.setBackground(bg);
+        lines.setBorder(BorderFactory.createLineBorder(new Color(0x3A3A3A)));
+        lines.setFixedCellHeight(metrics.getHeight());
+        lines.setFixedCellWidth(metrics.charWidth('0'));
+
+        JScrollPane scroll = new JScrollPane(lines);
+        console.setOnFlush(() -> { // stays at the bottom unless scrolled up
+            JScrollBar bar = scroll.getVerticalScrollBar();
+            boolean isAtBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - metrics.getHeight();
+            lines.setFixedCellWidth((console.getLongestLine() + 1) * metrics.charWidth('0'));
+            if (isAtBottom) lines.ensureIndexIsVisible(console.getSize() - 1);
+        });
 
         JTextField input = new JTextField();
         input.setForeground(inputFg);
         input.setBackground(inputBg);
         input.setBorder(BorderFactory.createLineBorder(new Color(0x3A3A3A)));
+        input.addActionListener(_ -> {
+            String text = input.getText();
+            input.setText("");
+            newConsole.processInput(text);
+        });
 
         panel.add(scroll, BorderLayout.CENTER);
         panel.add(input, BorderLayout.SOUTH);
 
         tabs.add(name, panel);
-
-        Console newConsole;
-
-        if (peer != null) {
-            newConsole = new Console(this, console, input, name, peer);
-        } else {
-            newConsole = new Console(this, console, input, name, null);
-            mainConsole = newConsole;
-        }
-
-        int index = tabs.indexOfComponent(panel);
-        activeConsoles.put(newConsole, index);
-
-        return newConsole;
+        activeConsoles.put(newConsole, panel);
     }
 
-    // MUST be called with SwingUtilities.invokeAndWait(() -> window.createConsole(peerName));
-    public Console createConsole(String name) {
-        return buildConsole(name, null);
+    @Override
+    public Console createConsole(Peer peer) {
+        return buildConsole(peer.ip(), peer);
     }
 
-    public Console createConsole(String name, Peer peer) {
-        return buildConsole(name, peer);
+    // after the tab was added, both go through the edt in order
+    public void removeConsole(Console console) {
+        SwingUtilities.invokeLater(() -> {
+            JPanel panel = activeConsoles.remove(console);
+            if (panel != null) tabs.remove(panel);
+        });
     }
 
-    public void removeConsole(Console console) {
-        tabs.remove(activeConsoles.get(console));
+    // multi-select, each file is sent as its own transfer
+    @Override
+    public List<Path> chooseFiles() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setMultiSelectionEnabled(true);
+        int result = chooser.showOpenDialog(null);
+
+        List<Path> files = new ArrayList<>();
+        if (result == JFileChooser.APPROVE_OPTION) {
+            for (File selectedFile : chooser.getSelectedFiles()) {
+                files.add(selectedFile.toPath());
+            }
+        }
+
+        return files;
     }
 
-    public Path chooseFile() {
+    @Override
+    public Path chooseFolder() {
         JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
         int result = chooser.showOpenDialog(null);
 
         if (result == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = chooser.getSelectedFile();
-            if (selectedFile != null) {
-                return selectedFile.toPath();
+            File selectedFolder = chooser.getSelectedFile();
+            if (selectedFolder != null) {
+                return selectedFolder.toPath();
             }
         }
 
@@ -1,13 +1,9 @@
 package main;
 
-import gui.Console;
 import network.Peer;
 import network.packets.Auth;
 import network.packets.KeepAlive;
 
-import javax.swing.*;
-import java.util.concurrent.atomic.AtomicReference;
-
 public class ConnectionVerifier {
     private Peer peer;
 
@@ -39,29 +35,22 @@ public class ConnectionVerifier {
         }
 
         connState = ConnectionState.ACCEPTED;
+        peer.setConsole(Main.frontend().createConsole(peer));
         log("Connection to peer was accepted");
 
-        try {
-            AtomicReference<Console> ref = new AtomicReference<>();
-            SwingUtilities.invokeAndWait(() -> ref.set(Main.window().createConsole(peer.ip(), peer))); // run on EDT and wont be null
-            peer.setConsole(ref.get());
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (Main.isAutoAuth()) { // cmd 'auth auto'
+            authorize();
+            return;
         }
 
-        new Thread(() -> {
-            try {
-                log("cmd 'auth [accept/decline]' for this connection within 30s...");
-                Thread.sleep(AUTH_TIMEOUT_MILLIS);
-                if (!isAuthorized()) {
-                    log("Authentication timed out; disconnecting...");
-                    peer.writePacket(new Auth("Authorization timed out"));
-                    peer.close();
-                }
-            } catch (InterruptedException e) {
-                log("Error when waiting for authentication: " + e.getMessage());
+        log("cmd 'auth [accept/decline]' for this connection within 30s...");
+        peer.schedule(() -> {
+            if (!isAuthorized()) {
+                log("Authentication timed out; disconnecting...");
+                peer.writePacket(new Auth("Authorization timed out"));
+                peer.close();
             }
-        }).start();
+        }, AUTH_TIMEOUT_MILLIS);
     }
 
     private boolean peerAuthorized = false;
@@ -82,17 +71,12 @@ public class ConnectionVerifier {
 
         log("Connection to peer was authorized");
 
-        // write KeepAlive packets
-        new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(KEEP_ALIVE_COOLDOWN);
-                    peer.writePacket(new KeepAlive());
-                } catch (InterruptedException e) {
-                    log("Error when writing keep alive packets: " + e.getMessage());
-                }
+        // write KeepAlive packets, unless something else was sent recently; stops when the peer disconnects
+        peer.scheduleRepeating(() -> {
+            if (System.currentTimeMillis() - peer.getLastWriteMillis() >= KEEP_ALIVE_COOLDOWN) {
+                peer.writePacket(new KeepAlive());
             }
-        }).start();
+        }, KEEP_ALIVE_COOLDOWN);
     }
 
     public void denyAuthorization() {
@@ -106,14 +90,7 @@ public class ConnectionVerifier {
         autoAuthorized = true;
         peer.writePacket(new Auth(""));
         connState = ConnectionState.AUTHORIZED;
-
-        try {
-            AtomicReference<Console> ref = new AtomicReference<>();
-            SwingUtilities.invokeAndWait(() -> ref.set(Main.window().createConsole(peer.ip(), peer))); // run on EDT and wont be null
-            peer.setConsole(ref.get());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        peer.setConsole(Main.frontend().createConsole(peer));
     }
 
     public boolean isAccepted() { return connState != ConnectionState.CONNECTED; }
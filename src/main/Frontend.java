@@ -0,0 +1,18 @@
+package main;
+
+import network.Peer;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public interface Frontend {
+    // what the program is driven from; the swing window, or stdin/a command file/an admin socket when headless
+
+    void logMain(String logText);
+
+    // called from the peer's reader thread once it accepts; returns straight away, nothing waits on a ui thread
+    PeerConsole createConsole(Peer peer);
+
+    List<Path> chooseFiles(); // empty if cancelled
+    Path chooseFolder(); // null if cancelled
+}
@@ -0,0 +1,296 @@
+package main;
+
+import network.Peer;
+import processors.MainInputProcessor;
+import processors.PeerInputProcessor;
+import util.FileUtil;
+import util.MainUtil;
+import util.ThreadUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class Headless implements Frontend {
+    // runs a node without a window, for servers ('--headless'); nothing here touches swing
+    // commands are lines from a command file ('--commands [file]', run first), stdin and a local admin socket
+    // ('--admin [port]', 127.0.0.1 only):
+    //   [cmd]          main console command, e.g. 'port open 5000'
+    //   @[peer] [cmd]  command for a connected peer, by its address as logged (ip:port, for inbound peers the port
+    //                  is theirs), e.g. '@127.0.0.1:5000 file upload /data/x'
+    //   peers          connected peers
+    //   wait [ms]      pause before the next line, for command files
+    // everything logged goes to stdout and the log file, and to every admin socket client
+    // the node runs until cmd 'exit', stdin closing doesnt stop it
+    // any local user can reach the admin socket, so a client's first line has to be the token written to admin.token
+    // in the main folder, readable by this user only; a new one each start
+
+    private final MainInputProcessor mainInput = new MainInputProcessor();
+    private final Map<String, HeadlessConsole> consoles = new ConcurrentHashMap<>(); // by peer address
+    private final List<AdminClient> adminClients = new CopyOnWriteArrayList<>();
+
+    private final int ADMIN_QUEUE_LINES = 1024;
+    private static final int ADMIN_TOKEN_BYTES = 16;
+    private volatile String adminToken;
+
+    void start(String[] args) {
+        logMain("Headless | cmd for command list, '@[peer] [cmd]' for a peer's, 'peers' to list them");
+
+        String adminPort = argAfter(args, "--admin");
+        if (adminPort != null) openAdmin(adminPort);
+
+        String commandFile = argAfter(args, "--commands");
+        if (commandFile != null) {
+            try {
+                readCommands(Files.newBufferedReader(Path.of(commandFile)));
+            } catch (IOException e) {
+                logMain("Error when reading command file: " + e.getMessage());
+            }
+        }
+
+        readCommands(new InputStreamReader(System.in));
+
+        try { // stdin closed, e.g. started as a service; admin socket and connections carry on
+            Thread.currentThread().join();
+        } catch (InterruptedException _) {}
+    }
+
+    private static String argAfter(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return null;
+    }
+
+    private void readCommands(Reader source) {
+        try (BufferedReader reader = new BufferedReader(source)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                processInput(line.strip());
+            }
+        } catch (IOException _) {}
+    }
+
+    private void processInput(String line) {
+        if (line.isEmpty() || line.startsWith("#")) return;
+
+        String[] args = line.split(" ");
+        if (args[0].equals("wait")) { // outside the lock, only holds up this source
+            pause(args);
+            return;
+        }
+
+        synchronized (this) { // input processors arent thread safe, and the sources run on their own threads
+            if (line.startsWith("@")) {
+                HeadlessConsole console = consoles.get(args[0].substring(1));
+                if (console == null) {
+                    logMain("No peer " + args[0].substring(1) + "; 'peers' to list them");
+                } else if (args.length == 1) {
+                    logMain("Invalid command: " + line);
+                } else {
+                    console.processInput(line.substring(args[0].length() + 1));
+                }
+                return;
+            }
+
+            logMain("> " + line);
+            if (args[0].equals("peers")) {
+                logMain(consoles.isEmpty() ? "No peers" : MainUtil.cmdIndent("Peers:\n" + String.join("\n", consoles.keySet())));
+            } else {
+                mainInput.processInput(line);
+            }
+        }
+    }
+
+    private void pause(String[] args) {
+        try {
+            if (args.length != 2) throw new NumberFormatException();
+            Thread.sleep(Long.parseLong(args[1]));
+        } catch (NumberFormatException _) {
+            logMain("Invalid command: " + String.join(" ", args));
+        } catch (InterruptedException _) {}
+    }
+
+    private void output(String line) {
+        for (AdminClient client : adminClients) {
+            client.send(line);
+        }
+    }
+
+    @Override
+    public void logMain(String logText) {
+        output(MainUtil.log(logText));
+    }
+
+    @Override
+    public PeerConsole createConsole(Peer peer) {
+        HeadlessConsole console = new HeadlessConsole(peer);
+        consoles.put(peer.address(), console);
+        return console;
+    }
+
+    @Override
+    public List<Path> chooseFiles() {
+        logMain("No file chooser when headless; cmd 'file upload [path]'");
+        return List.of();
+    }
+
+    @Override
+    public Path chooseFolder() {
+        logMain("No folder chooser when headless; cmd 'file folder [path]'");
+        return null;
+    }
+
+    private class HeadlessConsole implements PeerConsole {
+        private final Peer peer;
+        private final PeerInputProcessor inputProcessor;
+
+        HeadlessConsole(Peer peer) {
+            this.peer = peer;
+            inputProcessor = new PeerInputProcessor(peer);
+
+            log("Console " + peer.address() + " | cmd for command list");
+            log("Waiting for connection to be authorized...");
+        }
+
+        void processInput(String text) {
+            log("> " + text);
+            inputProcessor.processInput(text);
+        }
+
+        @Override
+        public void log(String logText) {
+            output(MainUtil.log("[" + peer.address() + "] " + logText));
+        }
+
+        @Override
+        public void close() {
+            consoles.remove(peer.address(), this);
+        }
+    }
+
+    // local admin socket
+
+    private void openAdmin(String portArg) {
+        ServerSocket server;
+        try {
+            int port = Integer.parseInt(portArg);
+            if (!MainUtil.isPort(port)) throw new NumberFormatException();
+            server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress()); // not reachable from other machines
+        } catch (NumberFormatException _) {
+            logMain("Invalid admin port: " + portArg);
+            return;
+        } catch (IOException e) {
+            logMain("Error when opening admin socket: " + e.getMessage());
+            return;
+        }
+
+        Path tokenFile = FileUtil.getMainDir().resolve("admin.token");
+        try {
+            adminToken = writeToken(tokenFile);
+        } catch (IOException e) {
+            logMain("Error when writing admin token: " + e.getMessage());
+            try {
+                server.close();
+            } catch (IOException _) {}
+            return;
+        }
+
+        logMain("Admin socket on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + " | first line must be the token in " + tokenFile);
+        ThreadUtil.start("admin-accept", () -> {
+            while (true) {
+                try {
+                    AdminClient client = new AdminClient(server.accept());
+                    ThreadUtil.start("admin-reader", client::run);
+                } catch (IOException e) {
+                    logMain("Error when accepting admin connection: " + e.getMessage());
+                    return;
+                }
+            }
+        });
+    }
+
+    private static String writeToken(Path tokenFile) throws IOException {
+        byte[] bytes = new byte[ADMIN_TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+
+        Files.deleteIfExists(tokenFile);
+        try { // created private rather than made private, so theres no moment anyone else could read it
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException _) { // windows; the user's folder isnt readable by others anyway
+            Files.createFile(tokenFile);
+        }
+        Files.writeString(tokenFile, token);
+        return token;
+    }
+
+    private class AdminClient {
+        private final Socket socket;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>(ADMIN_QUEUE_LINES); // a client that stops reading misses lines instead of holding up the log
+        private final Thread writer;
+
+        AdminClient(Socket socket) {
+            this.socket = socket;
+            writer = ThreadUtil.start("admin-writer", this::write);
+        }
+
+        void send(String line) {
+            lines.offer(line);
+        }
+
+        // token, then commands until the client disconnects; nothing is sent to it before the token
+        void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String token = reader.readLine();
+                if (token != null && MessageDigest.isEqual(token.strip().getBytes(StandardCharsets.UTF_8), adminToken.getBytes(StandardCharsets.UTF_8))) {
+                    adminClients.add(this);
+                    readCommands(reader);
+                } else {
+                    logMain("Admin connection closed; invalid token");
+                }
+            } catch (IOException _) {}
+            close();
+        }
+
+        private void write() {
+            try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                while (true) {
+                    out.write(lines.take());
+                    out.newLine();
+                    if (lines.isEmpty()) out.flush();
+                }
+            } catch (IOException | InterruptedException _) {
+                close();
+            }
+        }
+
+        private void close() {
+            adminClients.remove(this);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException _) {}
+        }
+    }
+}
@@ -2,27 +2,48 @@ package main;
 
 import gui.Window;
 import network.Peer;
+import network.nio.NioEngine;
 import util.FileUtil;
 import util.MainUtil;
+import util.ThreadUtil;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 
 public class Main {
-    private static Window window;
+    private static Frontend frontend;
 
+    // '--headless' runs without a window, see Headless; '--commands [file]' and '--admin [port]' only apply then
     public static void main(String[] args) {
-        window = new Window();
+        if (List.of(args).contains("--headless")) {
+            Headless headless = new Headless();
+            start(headless);
+            headless.start(args);
+            return;
+        }
+
+        Window window = new Window();
         window.createMainConsole();
+        start(window);
+    }
+
+    // also how tools that run nodes in this jvm start one, see bench
+    public static void start(Frontend frontend) {
+        Main.frontend = frontend;
         FileUtil.initFiles();
     }
 
     public static void logMain(String logText) {
-        window.logMain(logText);
+        frontend.logMain(logText);
     }
 
     private static boolean isWaiting = false;
+    private static volatile boolean isAutoAuth = false; // cmd 'auth [auto/manual]', see ConnectionVerifier.accept()
     private static ServerSocket serverSocket;
     private static Thread serverThread;
 
@@ -36,11 +57,24 @@ public class Main {
         if (isWaiting) return;
         isWaiting = true;
 
-        serverThread = new Thread(() -> {
+        if (useNio) {
+            try {
+                nioEngine.listen(port, Main::acceptChannel);
+                logMain("Waiting for inbound connections on port " + port + "... (nio)");
+            } catch (IOException e) {
+                logMain("Error while waiting for connections: " + e.getMessage());
+                isWaiting = false;
+            }
+            return;
+        }
+
+        serverThread = ThreadUtil.start("server-accept-" + port, () -> {
             serverSocket = null;
 
             try {
-                serverSocket = new ServerSocket(port);
+                // opened through nio so accepted sockets have a channel, needed for zero-copy uploads
+                serverSocket = ServerSocketChannel.open().socket();
+                serverSocket.bind(new InetSocketAddress(port));
                 logMain("Waiting for inbound connections on port " + port + "...");
 
                 while (true) {
@@ -51,8 +85,7 @@ public class Main {
                     logMain("Connection received: " + ip);
 
                     Peer peer = new Peer(newSocket);
-
-                    new Thread(peer).start();
+                    peer.start();
                 }
 
             } catch (IOException e) {
@@ -65,13 +98,36 @@ public class Main {
                 } catch (IOException _) {}
             }
         });
+    }
+
+    // runs on the nio engine's accept loop; channel is already non-blocking
+    private static void acceptChannel(SocketChannel channel) {
+        Socket newSocket = channel.socket();
+
+        try {
+            newSocket.setKeepAlive(true);
+        } catch (IOException _) {}
 
-        serverThread.start();
+        logMain("Connection received: " + newSocket.getInetAddress().getHostAddress());
+
+        Peer peer = new Peer(newSocket);
+        peer.start();
+    }
+
+    // inbound connections are authorized as soon as they're accepted instead of waiting for 'auth accept'
+    // anyone who can reach the port gets in, so only for trusted networks, or load tests (see bench.LoadTest)
+    public static void setAutoAuth(boolean autoAuth) {
+        isAutoAuth = autoAuth;
+        logMain(autoAuth ? "Inbound connections will be authorized automatically" : "Inbound connections must be authorized with 'auth accept'");
     }
 
+    public static boolean isAutoAuth() { return isAutoAuth; }
+
     // close port
     public static void endInbound() {
         isWaiting = false;
+        if (nioEngine != null) nioEngine.stopListening();
+
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -99,12 +155,11 @@ public class Main {
         String ip = split[0];
         int port = Integer.parseInt(split[1]);
 
-        new Thread(() -> {
+        ThreadUtil.start("connect-" + ipPort, () -> {
             try {
-                Socket newSocket = new Socket(ip, port);
-                newSocket.setKeepAlive(true);
+                Socket newSocket = openSocket(ip, port);
                 Peer peer = new Peer(newSocket, port);
-                new Thread(peer).start();
+                peer.start();
 
                 logMain("Connection to " + ipPort + " was successful!");
 
@@ -113,8 +168,38 @@ public class Main {
                 logMain(msg);
             }
 
-        }).start();
+        });
+    }
+
+    // also used for the extra data connections of multi-stream file transfers
+    public static Socket openSocket(String ip, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(ip, port));
+        if (useNio) channel.configureBlocking(false); // peer picks this up and joins an event loop
+
+        Socket newSocket = channel.socket();
+        newSocket.setKeepAlive(true);
+        return newSocket;
+    }
+
+    private static NioEngine nioEngine;
+    private static boolean useNio = false;
+
+    // switch between a thread per peer (blocking) and the shared nio event loops for new connections
+    // peers that are already connected, and an open port, stay on whichever they started with
+    public static void useNio(boolean nio, int loopCount) {
+        if (nio && nioEngine == null) {
+            try {
+                nioEngine = new NioEngine(loopCount);
+            } catch (IOException e) {
+                logMain("Error when starting nio engine: " + e.getMessage());
+                return;
+            }
+        }
+
+        useNio = nio;
+        logMain(nio ? "Using nio engine with " + nioEngine.getLoopCount() + " event loop(s)" : "Using blocking sockets");
     }
 
-    public static Window window() { return window; }
+    public static Frontend frontend() { return frontend; }
+    public static NioEngine nioEngine() { return nioEngine; }
 }
@@ -0,0 +1,8 @@
+package main;
+
+public interface PeerConsole {
+    // where a peer's log goes and its commands come from, see Frontend
+
+    void log(String logText); // any thread
+    void close();
+}
@@ -0,0 +1,31 @@
+package network;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DataStreams {
+    // tokens handed out for multi-stream file transfers
+    // the side with the open port registers one, the other side opens extra connections and sends it in FileStreamJoin
+    // random so a stranger connecting to the port cant attach itself to a transfer
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<Long, Peer> owners = new ConcurrentHashMap<>();
+
+    public static long register(Peer owner) {
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0 || owners.putIfAbsent(token, owner) != null); // 0 means no token
+
+        return token;
+    }
+
+    public static Peer find(long token) {
+        return owners.get(token);
+    }
+
+    public static void unregister(long token) {
+        if (token != 0) owners.remove(token);
+    }
+}
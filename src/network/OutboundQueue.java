@@ -0,0 +1,128 @@
+package network;
+
+import network.packets.Compressed;
+import network.packets.Packet;
+import network.packets.PacketType;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+public class OutboundQueue {
+    // packets waiting to be written on one connection, by priority
+    // control (handshake, pings, keep alives, cancels, flow control) goes first, then messages, then file data.
+    // the writer takes the most urgent packet every time it finishes a frame, so a ping or a message only ever
+    // waits for the chunk already on the wire, not for every chunk queued ahead of it
+    // each class keeps its own order; anything the peer has to see before a chunk is in the same class or a higher one
+
+    public enum Priority {
+        CONTROL,
+        INTERACTIVE,
+        BULK
+    }
+
+    // file data is bounded so an upload blocks instead of queueing the whole file, the others only so a flood cant eat memory
+    private static final int[] CAPACITY = {1024, 1024, 64};
+
+    private final List<ArrayDeque<Packet>> queues = List.of(new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>());
+    private final long[] queued = new long[3];
+    private final long[] written = new long[3];
+    private boolean isClosed;
+
+    public static Priority priorityOf(Packet packet) {
+        PacketType type = packet instanceof Compressed compressed ? compressed.getInnerType() : packet.getType();
+
+        return switch (type) {
+            case MESSAGE -> Priority.INTERACTIVE;
+            // the chunks and whatever has to stay in line with them
+            case FILE_DATA, FILE_CHUNK, FILE_HEADER, FILE_FOOTER, FOLDER_MANIFEST, DELTA_OFFER -> Priority.BULK;
+            default -> Priority.CONTROL;
+        };
+    }
+
+    // false if there was no room before the timeout, or the queue was closed
+    public synchronized boolean offer(Packet packet, long timeoutMillis) throws InterruptedException {
+        int priority = priorityOf(packet).ordinal();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (queues.get(priority).size() >= CAPACITY[priority]) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (isClosed || remaining <= 0) return false;
+            wait(remaining);
+        }
+
+        if (isClosed) return false;
+        enqueue(priority, packet);
+        return true;
+    }
+
+    // never blocks; for threads that cant wait for the writer, like the nio loop that is the writer or a blocking reader
+    public synchronized void add(Packet packet) {
+        enqueue(priorityOf(packet).ordinal(), packet);
+    }
+
+    private void enqueue(int priority, Packet packet) {
+        queues.get(priority).add(packet);
+        queued[priority]++;
+        notifyAll();
+    }
+
+    // most urgent packet waiting, or null
+    public synchronized Packet poll() {
+        for (ArrayDeque<Packet> queue : queues) {
+            Packet packet = queue.poll();
+            if (packet != null) {
+                notifyAll(); // room for a blocked offer()
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    // null once the queue is closed and everything in it has been taken
+    public synchronized Packet take() throws InterruptedException {
+        while (true) {
+            Packet packet = poll();
+            if (packet != null || isClosed) return packet;
+            wait();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        for (ArrayDeque<Packet> queue : queues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    // called by the writer once a packet from poll()/take() is fully on the socket
+    public synchronized void markWritten(Packet packet) {
+        written[priorityOf(packet).ordinal()]++;
+        notifyAll();
+    }
+
+    // blocks until every packet queued before this call has been written; later, more urgent packets dont count
+    public synchronized void awaitWritten() {
+        long[] target = queued.clone();
+
+        try {
+            while (!isClosed && !isWritten(target)) {
+                wait(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isWritten(long[] target) {
+        for (int i = 0; i < target.length; i++) {
+            if (written[i] < target[i]) return false;
+        }
+        return true;
+    }
+
+    // what is queued can still be taken, nothing new is accepted
+    public synchronized void close() {
+        isClosed = true;
+        notifyAll();
+    }
+}
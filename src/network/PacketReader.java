@@ -0,0 +1,117 @@
+package network;
+
+import main.Main;
+import network.packets.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+public class PacketReader {
+    private final Peer peer;
+    private final DataInputStream in; // unbuffered, so the channel can be read directly after a header
+    private final DataInputStream legacyIn; // same stream, but available() is always 0; see Packet
+    private final SocketChannel channel;
+
+    private final FileData receivedData = new FileData(); // reused for every incoming chunk, must be released after handling
+    private final FileData receivedChunk = FileData.withTransferId();
+
+    // binary frames are read whole into this buffer then parsed, instead of a syscall per readInt()
+    private final int MAX_FRAME_SIZE = 16 * 1024 * 1024; //16MB
+    private byte[] frame = new byte[8192];
+    private final FrameInput frameInput = new FrameInput();
+    private final DataInputStream frameIn = new DataInputStream(frameInput);
+
+    public PacketReader(Peer peer, Socket socket) throws IOException {
+        this.peer = peer;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.legacyIn = new DataInputStream(new FilterInputStream(in) {
+            @Override
+            public int available() {
+                return 0;
+            }
+        });
+        this.channel = socket.getChannel();
+    }
+
+    // returns null for packets that couldnt be made; they are skipped
+    public Packet read() throws IOException {
+        // a frame starts with either a one byte packet code, or the 2 byte writeUTF length of a legacy string id
+        // codes are never 0 and ids are never 256+ bytes long, so the first byte tells them apart
+        int first = in.readUnsignedByte();
+        if (first == 0) return readLegacy();
+
+        fill(4);
+        int length = frameIn.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) throw new IOException("Invalid frame length: " + length);
+
+        PacketType type = PacketFactory.type(first);
+        if (type == null) {
+            in.skipNBytes(length); // length prefix lets unknown packets be skipped cleanly
+            unknown("code " + first);
+            return null;
+        }
+
+        if (type.isFileData() && channel != null) {
+            FileData data = type == PacketType.FILE_CHUNK ? receivedChunk : receivedData;
+            fill(data.getHeaderSize());
+            data.read(frameIn, channel, length); // pooled buffer; in is unbuffered so reading the channel directly is safe
+            return data;
+        }
+
+        fill(length);
+        Packet packet = type.create();
+        packet.read(frameIn);
+        return packet;
+    }
+
+    private Packet readLegacy() throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        String id = new String(bytes, StandardCharsets.UTF_8); // ids are ascii so modified utf-8 is plain utf-8
+
+        PacketType type = PacketFactory.type(id);
+        if (type == null) {
+            unknown(id);
+            return null;
+        }
+
+        if (type.isFileData() && channel != null) {
+            FileData data = type == PacketType.FILE_CHUNK ? receivedChunk : receivedData;
+            data.read(in, channel, -1);
+            return data;
+        }
+
+        Packet packet = type.create();
+        packet.read(legacyIn);
+        return packet;
+    }
+
+    private void fill(int length) throws IOException {
+        if (length > MAX_FRAME_SIZE) throw new IOException("Frame too large: " + length);
+        if (length > frame.length) frame = new byte[Math.max(length, frame.length * 2)];
+
+        in.readFully(frame, 0, length);
+        frameInput.reset(frame, length);
+    }
+
+    private void unknown(String id) {
+        peer.log("Packet received was null: " + id);
+        Main.logMain("Packet received was null: " + id);
+    }
+
+    // ByteArrayInputStream that can be pointed at the frame buffer again without allocating
+    private static class FrameInput extends ByteArrayInputStream {
+        FrameInput() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] buf, int length) {
+            this.buf = buf;
+            this.pos = 0;
+            this.count = length;
+            this.mark = 0;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package network;
+
+import network.packets.*;
+import util.ThreadUtil;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+public class PacketWriter implements Transport, Runnable {
+    private final Peer peer;
+    private final DataOutputStream out;
+    private final SocketChannel channel; // null if the socket wasnt opened through nio; zero-copy uploads are then unavailable
+
+    // packets are queued and written by one thread, several queued packets go out in one socket write
+    // most urgent first, see OutboundQueue; write() blocks while a packet's class is full, except on the reader thread
+    private final OutboundQueue queue = new OutboundQueue();
+
+    private final int BUFFER_SIZE = 65536; //64KB, flushed when full or when the queue runs dry
+    private final int CLOSE_TIMEOUT_MILLIS = 1000;
+
+    // payloads are written here first so the frame can be prefixed with its length
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(1024);
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+
+    private volatile boolean binaryIds;
+    private volatile boolean isClosed;
+
+    private Thread thread;
+
+    public PacketWriter(Peer peer, Socket socket) throws IOException {
+        this.peer = peer;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        this.channel = socket.getChannel();
+    }
+
+    @Override
+    public void start() {
+        thread = ThreadUtil.start("peer-writer-" + peer.ip(), this);
+    }
+
+    // peer sent Hello, so it understands one byte packet codes
+    @Override
+    public void enableBinaryIds() {
+        binaryIds = true;
+    }
+
+    @Override
+    public void write(Packet packet) {
+        // handlers on the reader thread queue file headers and manifests while holding the FileProcessor lock.
+        // blocking there on a full BULK class would stop reading this socket, and if the peer is doing the same
+        // both writers end up stuck on full socket buffers, so like the nio loop it goes over the cap instead
+        if (peer.isReaderThread()) {
+            if (!isClosed) queue.add(packet);
+            return;
+        }
+
+        try {
+            while (!isClosed) {
+                if (queue.offer(packet, 100)) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // blocks until everything queued before this call has been written to the socket
+    @Override
+    public void awaitWritten() {
+        queue.awaitWritten();
+    }
+
+    // writes whatever is still queued, then stops the thread; socket is closed by the peer afterwards
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) return;
+            isClosed = true;
+        }
+
+        queue.close();
+        try {
+            if (thread != null && thread != Thread.currentThread()) thread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Packet packet = queue.take();
+                if (packet == null) break; // closed and drained
+
+                try {
+                    writeFrame(packet);
+                    if (queue.isEmpty()) out.flush(); // idle; send what was coalesced
+                } catch (IOException e) {
+                    // stream is cut mid-frame, nothing after this would make sense to the peer
+                    peer.log("Error when writing packet: " + e.getMessage());
+                    peer.close();
+                    return;
+                }
+
+                queue.markWritten(packet);
+            }
+
+            out.flush();
+        } catch (InterruptedException _) {
+        } catch (IOException e) {
+            peer.log("Error when writing packet: " + e.getMessage());
+        }
+    }
+
+    // binary frame: [code][payload length][payload]
+    // legacy frame: [writeUTF id][payload], used until the peer sends Hello as it might be an older version
+    private void writeFrame(Packet packet) throws IOException {
+        PacketType type = packet.getType();
+
+        if (!binaryIds) {
+            out.writeUTF(type.getId());
+            writePayload(packet);
+            return;
+        }
+
+        out.writeByte(type.getCode());
+
+        if (packet instanceof FileData data && data.isFileRegion()) {
+            out.writeInt(data.getHeaderSize() + data.getLength()); // header + chunk, known without reading the file
+            writePayload(packet);
+            return;
+        }
+
+        payload.reset();
+        packet.write(payloadOut);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    private void writePayload(Packet packet) throws IOException {
+        if (packet instanceof FileData data && data.isFileRegion() && channel != null) {
+            data.writeHeader(out);
+            out.flush();
+            data.transferTo(channel); // payload goes file -> socket without passing through the heap
+        } else {
+            packet.write(out);
+        }
+    }
+}
@@ -1,31 +1,55 @@
 package network;
 
-import gui.Console;
 import main.ConnectionVerifier;
 import processors.FileProcessor;
 import main.Main;
+import main.PeerConsole;
 import processors.PacketProcessor;
+import network.compression.Codec;
+import network.compression.Codecs;
+import network.nio.NioConnection;
 import network.packets.*;
+import util.Scheduler;
+import util.ThreadUtil;
 
-import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.nio.channels.SocketChannel;
 
 public class Peer implements Runnable {
     private final Socket socket;
-    private Console console;
+    private PeerConsole console;
 
     private PacketProcessor packetProcessor;
     private FileProcessor fileProcessor;
     private ConnectionVerifier connectionVerifier;
 
     public final String ip;
-    private boolean isDisconnecting;
+    private final String host;
+    private final int port; // port of the peer's open port for outbound connections, 0 for inbound
+    private volatile boolean isDisconnecting; // read without the lock by writers and schedule()
+    private volatile boolean hasBinaryIds; // peer sent Hello, so it is v1.5 and understands the newer packet fields
 
-    private DataOutputStream out;
-    private DataInputStream in;
+    private volatile Peer owner; // set on extra data connections of a multi-stream file transfer, see FileStreamJoin
+
+    // compression of what we send; the codec is picked from the peer's Compression packet, see Codecs
+    private volatile List<String> peerCodecs = List.of();
+    private volatile boolean isCompressionEnabled = true; // cmd 'compress [on/off]'
+    private final int MIN_COMPRESSED_MESSAGE = 128; // shorter messages barely shrink
+
+    private Transport transport;
+    private PacketReader reader; // blocking sockets only; nio connections decode frames on their event loop
+    private volatile Thread readerThread;
 
     private final int VERIFY_TIMEOUT_MILLIS = 5000;
+    private final int CONSOLE_CLOSE_DELAY_MILLIS = 10000;
+
+    private final Set<ScheduledFuture<?>> scheduledTasks = ConcurrentHashMap.newKeySet(); // cancelled on close
+    private volatile long lastWriteMillis = System.currentTimeMillis();
 
     public void log(String logText) {
         if (console != null) console.log(logText);
@@ -33,26 +57,52 @@ public class Peer implements Runnable {
 
     public Peer(Socket socket) {
         this.socket = socket;
-        ip = socket.getInetAddress().getHostAddress();
+        host = socket.getInetAddress().getHostAddress();
+        port = 0;
+        ip = host;
         initConnection();
 
         writePacket(new Accept());
+        writePacket(new Hello());
     }
 
     public Peer(Socket socket, int port) {
         this.socket = socket;
-        ip = socket.getInetAddress().getHostAddress() + ":" + port;
+        host = socket.getInetAddress().getHostAddress();
+        this.port = port;
+        ip = host + ":" + port;
         initConnection();
 
         // auto authenticate as this connection was an outbound request
         writePacket(new Accept());
+        writePacket(new Hello());
         connectionVerifier.autoAuth();
     }
 
+    // extra data connection opened to the owner's peer for a multi-stream file transfer
+    // skips Accept/auth, the token proves it belongs to a transfer the peer already accepted
+    public Peer(Socket socket, Peer owner, long token) {
+        this.socket = socket;
+        this.owner = owner;
+        host = owner.host;
+        port = owner.port;
+        ip = owner.ip + " (data)";
+        initConnection();
+
+        enableBinaryIds();
+        writePacket(new FileStreamJoin(token));
+    }
+
     private void initConnection() {
+        SocketChannel channel = socket.getChannel();
+
         try {
-            out = new DataOutputStream(socket.getOutputStream());
-            in = new DataInputStream(socket.getInputStream());
+            if (channel != null && !channel.isBlocking()) { // set up by Main for the nio engine
+                transport = new NioConnection(this, channel, Main.nioEngine().nextLoop());
+            } else {
+                transport = new PacketWriter(this, socket);
+                reader = new PacketReader(this, socket);
+            }
         } catch (IOException e) {
             Main.logMain("Error when creating output/input streams: " + e.getMessage());
         }
@@ -62,35 +112,27 @@ public class Peer implements Runnable {
         connectionVerifier = new ConnectionVerifier(this);
     }
 
-    // listen to incoming packets from peer
+    // start listening to incoming packets from peer
+    // blocking sockets get their own reader thread, nio connections are driven by their event loop
     // wait 5s for an Accept packet to be sent by the peer
     // otherwise terminate the connection
-    @Override
-    public void run() {
-        new Thread(() -> {
-            try {
-                Thread.sleep(VERIFY_TIMEOUT_MILLIS);
-                if (!connectionVerifier.isAccepted()) silentClose();
+    public void start() {
+        schedule(() -> {
+            if (!connectionVerifier.isAccepted() && owner == null) silentClose();
+        }, VERIFY_TIMEOUT_MILLIS);
 
-            } catch (InterruptedException e) {
-                log("Thread interrupted whilst waiting for connection verification: " + e.getMessage());
-            }
-
-        }).start();
+        transport.start();
+        if (reader != null) ThreadUtil.start("peer-reader-" + ip, this);
+    }
 
+    // blocking reader loop
+    @Override
+    public void run() {
+        readerThread = Thread.currentThread();
         try {
             while (true) {
-                String id = in.readUTF();
-                Packet packet = PacketFactory.create(id);
-
-                if (packet == null) {
-                    log("Packet received was null: " + id);
-                    Main.logMain("Packet received was null: " + id);
-                    continue;
-                }
-
-                packet.read(in);
-                packetProcessor.handle(packet);
+                Packet packet = reader.read();
+                if (packet != null) handle(packet);
             }
         } catch (IOException _) {}
         finally {
@@ -98,7 +140,72 @@ public class Peer implements Runnable {
         }
     }
 
-    public void setConsole(Console console) {
+    // handlers run here; whatever they send must not wait for the writer, see PacketWriter.write()
+    public boolean isReaderThread() {
+        return Thread.currentThread() == readerThread;
+    }
+
+    // called for every packet received, by the reader loop or the nio event loop
+    public void handle(Packet packet) throws IOException {
+        if (packet instanceof Compressed compressed) { // handlers only see what was inside
+            if (owner == null && !connectionVerifier.isAccepted()) return; // nothing is inflated for a connection that hasnt sent Accept
+            packet = compressed.inflate();
+            if (packet == null) return;
+        }
+
+        try {
+            if (owner == null) {
+                packetProcessor.handle(packet);
+            } else if (packet instanceof FileData data) { // data connection; chunks belong to the owner's download, anything else is ignored
+                owner.fileProcessor().processData(data);
+            }
+        } finally {
+            if (packet instanceof FileData data) data.release(); // give the pooled chunk buffer back
+        }
+    }
+
+    // peer sent Hello, so it understands one byte packet codes
+    public void enableBinaryIds() {
+        hasBinaryIds = true;
+        transport.enableBinaryIds();
+    }
+
+    // peer sent Hello; it can take Compressed packets, tell it which codecs we can decode
+    public void helloReceived() {
+        enableBinaryIds();
+        writePacket(new Compression(Codecs.names()));
+    }
+
+    public void setPeerCodecs(List<String> codecs) {
+        peerCodecs = codecs;
+    }
+
+    public void setCompression(boolean isEnabled) {
+        isCompressionEnabled = isEnabled;
+
+        Codec codec = codec();
+        if (!isEnabled) {
+            log("Compression off");
+        } else if (codec == null) {
+            log("Compression on; peer doesnt support any of our codecs, sending uncompressed");
+        } else {
+            log("Compression on; sending with " + codec.name() + ", skipping data that doesnt compress");
+        }
+    }
+
+    // null if what we send shouldnt be compressed; data connections go by their owner's
+    public Codec codec() {
+        if (owner != null) return owner.codec();
+        return isCompressionEnabled ? Codecs.choose(peerCodecs) : null;
+    }
+
+    // peer sent FileStreamJoin with a token registered by owner
+    public void joinAsDataStream(Peer owner) {
+        this.owner = owner;
+        enableBinaryIds();
+    }
+
+    public void setConsole(PeerConsole console) {
         if (this.console != null) return;
         this.console = console;
     }
@@ -106,18 +213,64 @@ public class Peer implements Runnable {
     public FileProcessor fileProcessor() { return fileProcessor; }
     public ConnectionVerifier connectionVerifier() { return connectionVerifier; }
     public String ip() { return ip; }
+    public String address() { return host + ":" + socket.getPort(); } // unique per connection; ip isnt for inbound peers, it has no port
+    public String host() { return host; }
+    public int port() { return port; }
+    public boolean isOutbound() { return port != 0; }
+    public boolean hasBinaryIds() { return hasBinaryIds; }
+    public boolean isClosed() { return isDisconnecting; }
 
     // send data to the peer
-    public synchronized void writePacket(Packet packet) {
+    // queued and written by the peer's transport; only blocks if the queue is full
+    public void writePacket(Packet packet) {
         if (isDisconnecting) return;
+        lastWriteMillis = System.currentTimeMillis();
+        transport.write(compress(packet));
+    }
+
+    // file chunks are compressed by the FileProcessor, which knows whether the file is worth it
+    private Packet compress(Packet packet) {
+        Codec codec = codec();
+        if (codec == null || !(packet instanceof Message message) || message.getText().length() < MIN_COMPRESSED_MESSAGE) return packet;
 
         try {
-            out.writeUTF(packet.getId());
-            packet.write(out);
-            out.flush();
-        } catch (IOException e) {
-            log("Error when writing packet: " + e.getMessage());
+            Compressed compressed = Compressed.compress(codec, packet);
+            return compressed != null ? compressed : packet;
+        } catch (IOException _) {
+            return packet;
+        }
+    }
+
+    // used to skip KeepAlives while other packets are keeping the socket alive anyway
+    public long getLastWriteMillis() { return lastWriteMillis; }
+
+    // run a task on the shared scheduler; cancelled if the peer disconnects first
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        scheduledTasks.removeIf(ScheduledFuture::isDone);
+        return track(Scheduler.schedule(task, delayMillis));
+    }
+
+    public ScheduledFuture<?> scheduleRepeating(Runnable task, long periodMillis) {
+        return track(Scheduler.scheduleRepeating(task, periodMillis));
+    }
+
+    // added before the check, close() sets the flag before cancelling; so either close() sees the task or this sees the flag
+    private ScheduledFuture<?> track(ScheduledFuture<?> future) {
+        scheduledTasks.add(future);
+        if (isDisconnecting) future.cancel(false);
+        return future;
+    }
+
+    private void cancelScheduledTasks() {
+        for (ScheduledFuture<?> future : scheduledTasks) {
+            future.cancel(false);
         }
+        scheduledTasks.clear();
+    }
+
+    // wait until everything written so far has actually gone out on the socket
+    public void awaitWrites() {
+        transport.awaitWritten();
     }
 
     // disconnect the peer without logging
@@ -128,6 +281,10 @@ public class Peer implements Runnable {
 
         //log("Silently closing peer"); //debug
 
+        cancelScheduledTasks();
+        fileProcessor.peerClosed();
+        transport.close();
+
         try {
             if (!socket.isClosed()) {
                 socket.close();
@@ -143,12 +300,21 @@ public class Peer implements Runnable {
 
     // disconnect the peer with logging
     public synchronized void close() {
+        if (owner != null) { // data connections dont have a console, and their owner logs the transfer
+            silentClose();
+            return;
+        }
+
         if (isDisconnecting) return;
         isDisconnecting = true;
 
         log("Disconnecting peer...");
         Main.logMain("Disconnecting peer " + ip + "...");
 
+        cancelScheduledTasks();
+        fileProcessor.peerClosed();
+        transport.close(); // sends anything still queued, e.g. the Auth explaining why
+
         try {
             if (!socket.isClosed()) {
                 socket.close();
@@ -162,14 +328,9 @@ public class Peer implements Runnable {
         log("Disconnected peer successfully");
         Main.logMain("Disconnected peer " + ip + " successfully");
 
-        new Thread(() -> {
-            try {
-                log("Console closing in 10s...");
-                Thread.sleep(10000);
-                if (console != null) console.close();
-            } catch (InterruptedException e) {
-                log("Error when sleeping thread before closing console: " + e.getMessage());
-            }
-        }).start();
+        log("Console closing in 10s...");
+        Scheduler.schedule(() -> {
+            if (console != null) console.close();
+        }, CONSOLE_CLOSE_DELAY_MILLIS);
     }
 }
@@ -0,0 +1,15 @@
+package network;
+
+import network.packets.Packet;
+
+public interface Transport {
+    // how a peer's packets get onto the socket
+    // PacketWriter: blocking socket with its own writer thread
+    // NioConnection: non-blocking channel driven by a shared nio event loop
+
+    void start();
+    void write(Packet packet);
+    void awaitWritten();
+    void enableBinaryIds();
+    void close();
+}
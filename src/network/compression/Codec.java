@@ -0,0 +1,27 @@
+package network.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public interface Codec {
+    // pluggable payload compression; each side lists the codecs it can decode in a Compression packet
+    // and compresses with the first of its own that the peer has, see Codecs
+
+    int id(); // in every Compressed packet, never reuse or renumber them
+    String name(); // in the Compression packet
+
+    // null if the output would be maxLength bytes or more, so the caller can send the payload as it is
+    default byte[] compress(byte[] data, int maxLength) {
+        byte[] output = new byte[maxLength];
+        int length = compress(data, ByteBuffer.allocate(0), output, maxLength);
+        return length < 0 ? null : Arrays.copyOf(output, length);
+    }
+
+    // the payload is header then body, so a file chunk is compressed from the buffer it was read into without copying
+    // it next to its header; output is the caller's to reuse. the compressed length, or -1 if it would be maxLength or more
+    int compress(byte[] header, ByteBuffer body, byte[] output, int maxLength);
+
+    // into is exactly the size of the original payload
+    void decompress(byte[] data, byte[] into) throws IOException;
+}
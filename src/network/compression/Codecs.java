@@ -0,0 +1,38 @@
+package network.compression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Codecs {
+    // every codec this build can decode, most preferred first
+    // adding one is a new Codec here with an unused id, older peers just wont list it
+
+    private static final List<Codec> supported = List.of(new DeflateCodec());
+    private static final Codec[] byId = new Codec[256];
+
+    static {
+        for (Codec codec : supported) {
+            byId[codec.id()] = codec;
+        }
+    }
+
+    public static Codec byId(int id) {
+        return id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    public static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Codec codec : supported) {
+            names.add(codec.name());
+        }
+        return names;
+    }
+
+    // first of ours the peer can decode, null if none
+    public static Codec choose(List<String> peerNames) {
+        for (Codec codec : supported) {
+            if (peerNames.contains(codec.name())) return codec;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package network.compression;
+
+public class CompressionSampler {
+    // adaptive compression for one upload, or one folder; media, archives and the like dont shrink and only cost cpu to try,
+    // so after a couple of chunks in a row that didnt compress it stops trying for a while, then samples again
+    // the pause doubles each time it fails; once a sample after the longest pause fails too the file is taken to be
+    // incompressible and nothing more of it is tried, its chunks all go as file regions with transferTo
+
+    private static final int MISSES_BEFORE_SKIPPING = 2;
+    private static final int MIN_SKIP = 16;
+    private static final int MAX_SKIP = 1024;
+
+    private int misses;
+    private int skip = MIN_SKIP;
+    private int skipping; // chunks left before the next sample
+    private boolean isIncompressible;
+
+    public synchronized boolean shouldTry() {
+        if (isIncompressible) return false;
+        if (skipping == 0) return true;
+
+        skipping--;
+        return false;
+    }
+
+    public synchronized void record(boolean isCompressed) {
+        if (isCompressed) {
+            misses = 0;
+            skip = MIN_SKIP;
+            return;
+        }
+
+        if (++misses < MISSES_BEFORE_SKIPPING) return;
+
+        isIncompressible = skip == MAX_SKIP;
+        misses = 0;
+        skipping = skip;
+        skip = Math.min(skip * 2, MAX_SKIP);
+    }
+
+    // a folder's files share one sampler; the next file gets tried again, though only briefly if this one gave up
+    public synchronized void nextFile() {
+        if (!isIncompressible) return;
+
+        isIncompressible = false;
+        skipping = 0;
+    }
+}
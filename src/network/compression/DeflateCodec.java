@@ -0,0 +1,60 @@
+package network.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class DeflateCodec implements Codec {
+    // zlib at its fastest level, raw deflate without the zlib header/checksum (chunks have their own crc32c)
+    // deflaters hold native state, one per thread instead of one per packet
+
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    @Override
+    public int id() { return 1; }
+
+    @Override
+    public String name() { return "deflate"; }
+
+    @Override
+    public int compress(byte[] header, ByteBuffer body, byte[] output, int maxLength) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+
+        // output is only let take up maxLength; if it fills before deflate is done, its not worth it
+        int length = 0;
+        deflater.setInput(header);
+        while (!deflater.needsInput()) { // header is taken in whole before the body replaces it as input
+            length += deflater.deflate(output, length, maxLength - length);
+            if (length == maxLength) return -1;
+        }
+
+        deflater.setInput(body);
+        deflater.finish();
+        length += deflater.deflate(output, length, maxLength - length);
+        return deflater.finished() ? length : -1;
+    }
+
+    @Override
+    public void decompress(byte[] data, byte[] into) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+
+        try {
+            int length = 0;
+            while (length < into.length && !inflater.finished()) {
+                int inflated = inflater.inflate(into, length, into.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += inflated;
+            }
+
+            if (length != into.length) throw new IOException("Compressed payload is " + length + " bytes, expected " + into.length);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed payload: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package network.nio;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+    private boolean isLegacy;
+
+    // lets Packet.read(DataInputStream) parse straight out of a connection's read buffer
+    // running out of bytes reads as end of stream, so DataInputStream throws EOFException
+
+    // legacy frames have no length, so available() cant say where the packet ends; reports 0 instead, see Packet
+    void setBuffer(ByteBuffer buffer, boolean isLegacy) {
+        this.buffer = buffer;
+        this.isLegacy = isLegacy;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+        if (len == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(bytes, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return isLegacy ? 0 : buffer.remaining();
+    }
+}
@@ -0,0 +1,40 @@
+package network.nio;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+class ByteBufferOutputStream extends OutputStream {
+    private ByteBuffer buffer;
+
+    // lets Packet.write(DataOutputStream) encode straight into a connection's write buffer
+    // grows if a frame doesnt fit, the connection stops filling it once it passes its flush size
+
+    ByteBufferOutputStream(int size) {
+        buffer = ByteBuffer.allocate(size);
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    private void ensureRemaining(int count) {
+        if (buffer.remaining() >= count) return;
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(bytes, off, len);
+    }
+}
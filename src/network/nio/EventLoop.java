@@ -0,0 +1,87 @@
+package network.nio;
+
+import main.Main;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean isRunning = true;
+
+    // one thread multiplexing many channels through a Selector
+    // everything touching a channel's key runs on this thread; other threads hand work over with execute();
+
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) selector.wakeup();
+    }
+
+    // must be called on the loop
+    SelectionKey register(SelectableChannel channel, int ops, KeyHandler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow(); // tasks queued from the loop itself dont wake the selector
+                }
+            } catch (IOException e) {
+                Main.logMain("Error in event loop: " + e.getMessage());
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Main.logMain("Error in event loop task: " + e.getMessage());
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                KeyHandler handler = (KeyHandler) key.attachment();
+                try {
+                    if (key.isValid()) handler.onSelected(key);
+                } catch (IOException | RuntimeException e) { // one bad connection must not take the loop down
+                    handler.onError(e);
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException _) {}
+    }
+}
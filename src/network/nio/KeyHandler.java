@@ -0,0 +1,12 @@
+package network.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+interface KeyHandler {
+    // attached to a SelectionKey; called on the event loop when the key is ready
+    void onSelected(SelectionKey key) throws IOException;
+
+    // called on the event loop if onSelected threw
+    void onError(Exception e);
+}
@@ -0,0 +1,354 @@
+package network.nio;
+
+import main.Main;
+import network.OutboundQueue;
+import network.Peer;
+import network.Transport;
+import network.packets.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioConnection implements Transport, KeyHandler {
+    private final Peer peer;
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private SelectionKey key;
+
+    private final int BUFFER_SIZE = 65536; //64KB
+    private final int MAX_FRAME_SIZE = 16 * 1024 * 1024; //16MB
+    private final int CLOSE_TIMEOUT_MILLIS = 1000;
+
+    // reading; frames are decoded out of readBuffer and handed to the peer as soon as they are complete
+    // handlers run on the event loop, so they must not block for long
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBufferInputStream readInput = new ByteBufferInputStream();
+    private final DataInputStream readIn = new DataInputStream(readInput);
+    private final FileData receivedData = new FileData(); // reused for every incoming chunk
+    private final FileData receivedChunk = FileData.withTransferId();
+    private int needed; // size the next frame needs readBuffer to be
+
+    // writing; other threads queue packets and the loop encodes as many as fit into one socket write, most urgent first
+    // handlers on the loop add without blocking, the loop cant wait for itself to make room; see OutboundQueue
+    private final OutboundQueue queue = new OutboundQueue();
+    private final AtomicBoolean isFlushScheduled = new AtomicBoolean();
+    private final ByteBufferOutputStream writeOutput = new ByteBufferOutputStream(BUFFER_SIZE);
+    private final DataOutputStream writeOut = new DataOutputStream(writeOutput);
+    private FileData region; // zero-copy chunk currently being transferred
+    private long regionSent;
+
+    private volatile boolean binaryIds;
+    private volatile boolean isClosed;
+    private volatile boolean isIdle = true;
+
+    public NioConnection(Peer peer, SocketChannel channel, EventLoop loop) {
+        this.peer = peer;
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    @Override
+    public void start() {
+        loop.execute(() -> {
+            try {
+                key = loop.register(channel, SelectionKey.OP_READ, this);
+                flush(); // anything written before registering, e.g. Accept
+            } catch (IOException e) {
+                onError(e);
+            }
+        });
+    }
+
+    @Override
+    public void enableBinaryIds() {
+        binaryIds = true;
+    }
+
+    @Override
+    public void write(Packet packet) {
+        if (isClosed) return;
+
+        if (loop.inLoop()) {
+            queue.add(packet);
+        } else {
+            try {
+                while (!queue.offer(packet, 100)) {
+                    if (isClosed) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        scheduleFlush();
+    }
+
+    // blocks until everything queued before this call has been written; never call from the loop
+    @Override
+    public void awaitWritten() {
+        queue.awaitWritten();
+    }
+
+    // writes whatever is still queued, then the peer closes the socket
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) return;
+            isClosed = true;
+            notifyAll();
+        }
+        queue.close(); // whats queued is still written below
+
+        if (loop.inLoop()) { // cant wait for ourselves, write what the socket takes right now
+            try {
+                flush();
+            } catch (IOException _) {}
+            return;
+        }
+
+        scheduleFlush();
+
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        synchronized (this) {
+            try {
+                while (!isDrained() && System.currentTimeMillis() < deadline) {
+                    wait(50);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isDrained() {
+        return isIdle && queue.isEmpty();
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) throws IOException {
+        if (key.isReadable()) onReadable();
+        if (key.isValid() && key.isWritable()) flush();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        peer.close();
+    }
+
+    private void scheduleFlush() {
+        if (!isFlushScheduled.compareAndSet(false, true)) return; // one wakeup covers everything queued until it runs
+
+        loop.execute(() -> {
+            isFlushScheduled.set(false);
+            try {
+                flush();
+            } catch (IOException e) {
+                onError(e);
+            }
+        });
+    }
+
+    // reading
+
+    private void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            peer.close();
+            return;
+        }
+
+        readBuffer.flip();
+        while (channel.isOpen() && decode()) {}
+        readBuffer.compact();
+
+        if (needed > readBuffer.capacity()) { // next frame is bigger than the buffer
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        needed = 0;
+    }
+
+    // returns false when the next frame hasnt fully arrived yet
+    private boolean decode() throws IOException {
+        if (!readBuffer.hasRemaining()) return false;
+
+        // same framing as PacketReader; a 0 first byte is the writeUTF length of a legacy id
+        int start = readBuffer.position();
+        int first = readBuffer.get(start) & 0xFF;
+        if (first == 0) return decodeLegacy(start);
+
+        if (readBuffer.remaining() < 5) return false;
+        int length = readBuffer.getInt(start + 1);
+        if (length < 0 || length > MAX_FRAME_SIZE) throw new IOException("Invalid frame length: " + length);
+
+        if (readBuffer.remaining() < 5 + length) {
+            needed = 5 + length;
+            return false;
+        }
+
+        int end = start + 5 + length;
+        int limit = readBuffer.limit();
+        readBuffer.position(start + 5).limit(end);
+
+        try {
+            PacketType type = PacketFactory.type(first);
+
+            if (type == null) {
+                unknown("code " + first); // length prefix lets unknown packets be skipped cleanly
+            } else if (type.isFileData()) {
+                FileData data = type == PacketType.FILE_CHUNK ? receivedChunk : receivedData;
+                data.read(readBuffer);
+                peer.handle(data);
+            } else {
+                readInput.setBuffer(readBuffer, false);
+                Packet packet = type.create();
+                packet.read(readIn);
+                peer.handle(packet);
+            }
+        } finally {
+            readBuffer.limit(limit).position(end);
+        }
+
+        return true;
+    }
+
+    // legacy frames arent length-prefixed, so try to parse and start over once more bytes arrive if it runs out
+    private boolean decodeLegacy(int start) throws IOException {
+        readInput.setBuffer(readBuffer, true);
+        Packet packet;
+
+        try {
+            String id = readIn.readUTF();
+            PacketType type = PacketFactory.type(id);
+
+            if (type == null) {
+                unknown(id);
+                return true;
+            }
+
+            packet = type.create();
+            packet.read(readIn);
+        } catch (EOFException e) {
+            readBuffer.position(start);
+
+            if (readBuffer.remaining() == readBuffer.capacity()) { // buffer is full and still not a whole frame
+                if (readBuffer.capacity() >= MAX_FRAME_SIZE) throw new IOException("Frame too large");
+                needed = readBuffer.capacity() * 2;
+            }
+            return false;
+        }
+
+        peer.handle(packet);
+        return true;
+    }
+
+    private void unknown(String id) {
+        peer.log("Packet received was null: " + id);
+        Main.logMain("Packet received was null: " + id);
+    }
+
+    // writing
+
+    private void flush() throws IOException {
+        if (key == null || !key.isValid()) return;
+
+        while (true) {
+            ByteBuffer buffer = writeOutput.buffer();
+            if (buffer.position() > 0) {
+                buffer.flip();
+                channel.write(buffer);
+                boolean isDone = !buffer.hasRemaining();
+                buffer.compact();
+
+                if (!isDone) { // socket is full, carry on when its writable
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+
+            if (region != null) {
+                regionSent += region.transferPart(channel, regionSent); // zero-copy, may only send part of the chunk
+                if (regionSent < region.getLength()) {
+                    setWriteInterest(true);
+                    return;
+                }
+
+                queue.markWritten(region);
+                region = null;
+            }
+
+            if (!fill()) break;
+        }
+
+        setWriteInterest(false);
+
+        synchronized (this) {
+            isIdle = true;
+            notifyAll();
+        }
+    }
+
+    // encode queued packets until the buffer is worth a write; stops after a zero-copy chunk header
+    private boolean fill() throws IOException {
+        boolean isFilled = false;
+        Packet packet;
+
+        while (writeOutput.buffer().position() < BUFFER_SIZE && region == null && (packet = queue.poll()) != null) {
+            isIdle = false;
+            encode(packet);
+            isFilled = true;
+        }
+
+        return isFilled;
+    }
+
+
+    private void encode(Packet packet) throws IOException {
+        PacketType type = packet.getType();
+        FileData data = packet instanceof FileData fileData && fileData.isFileRegion() ? fileData : null;
+
+        if (!binaryIds) {
+            writeOut.writeUTF(type.getId());
+            writePayload(packet, data);
+        } else {
+            writeOut.writeByte(type.getCode());
+            int lengthAt = writeOutput.buffer().position();
+            writeOut.writeInt(0); // filled in once the payload has been written
+
+            writePayload(packet, data);
+
+            ByteBuffer buffer = writeOutput.buffer(); // may have grown
+            int length = buffer.position() - lengthAt - 4 + (data != null ? data.getLength() : 0);
+            buffer.putInt(lengthAt, length);
+        }
+
+        if (data != null) {
+            region = data;
+            regionSent = 0;
+        } else {
+            queue.markWritten(packet);
+        }
+    }
+
+    private void writePayload(Packet packet, FileData data) throws IOException {
+        if (data != null) {
+            data.writeHeader(writeOut); // chunk itself follows via transferPart()
+        } else {
+            packet.write(writeOut);
+        }
+    }
+
+    private void setWriteInterest(boolean isInterested) {
+        int ops = isInterested ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+}
@@ -0,0 +1,94 @@
+package network.nio;
+
+import main.Main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class NioEngine {
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private ServerSocketChannel serverChannel;
+
+    // alternative to a thread per socket; a few event loops drive accept, reads and writes for every peer
+    // connections are spread round robin over the loops, accepting happens on the first one
+
+    public NioEngine(int loopCount) throws IOException {
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    public EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    public int getLoopCount() { return loops.length; }
+
+    // accepted channels are already non-blocking when passed to onAccept
+    public synchronized void listen(int port, Consumer<SocketChannel> onAccept) throws IOException {
+        if (serverChannel != null) return;
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        serverChannel = server;
+
+        EventLoop loop = loops[0];
+        loop.execute(() -> {
+            try {
+                loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor(server, onAccept));
+            } catch (IOException e) {
+                Main.logMain("Error when waiting for connections: " + e.getMessage());
+            }
+        });
+    }
+
+    public synchronized void stopListening() {
+        if (serverChannel == null) return;
+
+        try {
+            serverChannel.close();
+        } catch (IOException _) {}
+
+        serverChannel = null;
+    }
+
+    public void shutdown() {
+        stopListening();
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private static class Acceptor implements KeyHandler {
+        private final ServerSocketChannel server;
+        private final Consumer<SocketChannel> onAccept;
+
+        Acceptor(ServerSocketChannel server, Consumer<SocketChannel> onAccept) {
+            this.server = server;
+            this.onAccept = onAccept;
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) { // drain every pending connection
+                channel.configureBlocking(false);
+                onAccept.accept(channel);
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            if (server.isOpen()) Main.logMain("Error when accepting connection: " + e.getMessage());
+        }
+    }
+}
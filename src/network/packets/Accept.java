@@ -16,7 +16,7 @@ public class Accept implements Packet {
     }
 
     @Override
-    public String getId() {
-        return "Accept";
+    public PacketType getType() {
+        return PacketType.ACCEPT;
     }
 }
@@ -24,8 +24,8 @@ public class Auth implements Packet {
     }
 
     @Override
-    public String getId() {
-        return "Auth";
+    public PacketType getType() {
+        return PacketType.AUTH;
     }
 
     public String getStatus() { return status; }
@@ -0,0 +1,112 @@
+package network.packets;
+
+import network.compression.Codec;
+import network.compression.Codecs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Compressed implements Packet {
+    // another packet's payload compressed with one of the codecs the peer listed in its Compression packet
+    // compressed by whoever queues the packet rather than the writer, so an nio event loop never runs a deflater
+    // unwrapped before dispatch; handlers only ever see the inner packet, see Peer.handle()
+
+    private static final int MAX_ORIGINAL_SIZE = 16 * 1024 * 1024; //16MB, same as a frame
+    private static final double MIN_SAVING = 0.1; // not worth inflating on the other side for less
+
+    private int codecId;
+    private PacketType innerType;
+    private int originalLength;
+    private byte[] data;
+
+    private Codec codec; // read side
+
+    public Compressed() {}
+
+    private Compressed(Codec codec, PacketType innerType, int originalLength, byte[] data) {
+        this.codecId = codec.id();
+        this.innerType = innerType;
+        this.originalLength = originalLength;
+        this.data = data;
+    }
+
+    // null if the payload didnt compress enough, the packet should be sent as it is
+    public static Compressed compress(Codec codec, Packet packet) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        packet.write(new DataOutputStream(payload));
+        byte[] original = payload.toByteArray();
+
+        byte[] compressed = codec.compress(original, (int) (original.length * (1 - MIN_SAVING)));
+        if (compressed == null) return null;
+
+        return new Compressed(codec, packet.getType(), original.length, compressed);
+    }
+
+    // a file chunk compressed from where it was read, chunk is the region it's sent as otherwise
+    // output is the sender's and reused for every chunk, so one that doesnt shrink allocates nothing
+    public static Compressed compress(Codec codec, FileData chunk, ByteBuffer bytes, byte[] output) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(chunk.getHeaderSize());
+        chunk.writeHeader(new DataOutputStream(header));
+
+        int originalLength = chunk.getHeaderSize() + chunk.getLength();
+        int length = codec.compress(header.toByteArray(), bytes, output, (int) (originalLength * (1 - MIN_SAVING)));
+        if (length < 0) return null;
+
+        return new Compressed(codec, chunk.getType(), originalLength, Arrays.copyOf(output, length));
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(codecId);
+        out.writeByte(innerType.getCode());
+        out.writeInt(originalLength);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    // only checked here; inflating waits for inflate(), see Peer.handle()
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        codecId = in.readUnsignedByte();
+        int innerCode = in.readUnsignedByte();
+        originalLength = in.readInt();
+        int compressedLength = in.readInt();
+
+        codec = Codecs.byId(codecId);
+        innerType = PacketFactory.type(innerCode);
+        if (codec == null) throw new IOException("Unknown compression codec: " + codecId); // peer only uses codecs we listed
+        if (originalLength < 0 || originalLength > MAX_ORIGINAL_SIZE) throw new IOException("Invalid compressed packet length: " + originalLength);
+        // binary frames know how much is left, legacy ones report 0 and never carry these anyway (compression comes after Hello)
+        if (compressedLength < 0 || compressedLength > MAX_ORIGINAL_SIZE || compressedLength > in.available()) throw new IOException("Invalid compressed data length: " + compressedLength);
+        if (innerType == PacketType.COMPRESSED) throw new IOException("Nested compressed packet");
+
+        data = new byte[compressedLength];
+        in.readFully(data);
+    }
+
+    // null for an unknown packet, skipped like an uncompressed one would be
+    public Packet inflate() throws IOException {
+        if (innerType == null) return null;
+
+        byte[] original = new byte[originalLength];
+        codec.decompress(data, original);
+
+        Packet packet = innerType.create();
+        packet.read(new DataInputStream(new ByteArrayInputStream(original)));
+        return packet;
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.COMPRESSED;
+    }
+
+    public int getOriginalLength() { return originalLength; }
+    public int getCompressedLength() { return data.length; }
+    public PacketType getInnerType() { return innerType; }
+}
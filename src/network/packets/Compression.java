@@ -0,0 +1,43 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Compression implements Packet {
+    // sent after the peer's Hello; the codecs this side can decode, the peer compresses what it sends with one of them
+    // empty if compression is turned off, see Peer.setCompression()
+
+    private List<String> codecs = new ArrayList<>();
+
+    public Compression() {}
+
+    public Compression(List<String> codecs) {
+        this.codecs = codecs;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(codecs.size());
+        for (String codec : codecs) {
+            out.writeUTF(codec);
+        }
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            codecs.add(in.readUTF());
+        }
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.COMPRESSION;
+    }
+
+    public List<String> getCodecs() { return codecs; }
+}
@@ -0,0 +1,63 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class DeltaOffer implements Packet {
+    // delta mode; the sender's content-defined chunks of a file, in order, sent in batches after the FileResponse
+    // the receiver answers the last batch with a DeltaReply of the chunks it already has
+
+    private static final int HASH_SIZE = 32; // sha-256
+
+    private int transferId;
+    private boolean isLast;
+    private int[] lengths;
+    private byte[][] hashes;
+
+    public DeltaOffer() {}
+
+    public DeltaOffer(int transferId, boolean isLast, int[] lengths, byte[][] hashes) {
+        this.transferId = transferId;
+        this.isLast = isLast;
+        this.lengths = lengths;
+        this.hashes = hashes;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+        out.writeBoolean(isLast);
+        out.writeInt(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            out.writeInt(lengths[i]);
+            out.write(hashes[i]);
+        }
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+        isLast = in.readBoolean();
+
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / (4 + HASH_SIZE)) throw new IOException("Invalid delta offer count: " + count);
+
+        lengths = new int[count];
+        hashes = new byte[count][HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            lengths[i] = in.readInt();
+            in.readFully(hashes[i]);
+        }
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.DELTA_OFFER;
+    }
+
+    public int getTransferId() { return transferId; }
+    public boolean isLast() { return isLast; }
+    public int[] getLengths() { return lengths; }
+    public byte[][] getHashes() { return hashes; }
+}
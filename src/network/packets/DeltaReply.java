@@ -0,0 +1,44 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class DeltaReply implements Packet {
+    // delta mode; bitmap of the offered chunks the receiver found in its chunk store, the rest are sent as usual
+
+    private int transferId;
+    private byte[] have;
+
+    public DeltaReply() {}
+
+    public DeltaReply(int transferId, byte[] have) {
+        this.transferId = transferId;
+        this.have = have;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+        out.writeInt(have.length);
+        out.write(have);
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("Invalid delta reply length: " + length);
+
+        have = new byte[length];
+        in.readFully(have);
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.DELTA_REPLY;
+    }
+
+    public int getTransferId() { return transferId; }
+    public byte[] getHave() { return have; }
+}
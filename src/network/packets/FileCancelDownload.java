@@ -5,18 +5,28 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class FileCancelDownload implements Packet {
+    private int transferId; // 0 for older peers, which only have one transfer at a time; see FileRequest
+
     public FileCancelDownload() {}
 
+    public FileCancelDownload(int transferId) {
+        this.transferId = transferId;
+    }
+
     @Override
     public void write(DataOutputStream out) throws IOException {
+        if (transferId != 0) out.writeInt(transferId);
     }
 
     @Override
     public void read(DataInputStream in) throws IOException {
+        if (in.available() > 0) transferId = in.readInt(); // older peers stop here, see Packet
     }
 
     @Override
-    public String getId() {
-        return "FileCancelDownload";
+    public PacketType getType() {
+        return PacketType.FILE_CANCEL_DOWNLOAD;
     }
+
+    public int getTransferId() { return transferId; }
 }
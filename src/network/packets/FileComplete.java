@@ -0,0 +1,35 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class FileComplete implements Packet {
+    // receiver has every chunk and the file's digest matched; the sender keeps the file around for resends until then
+    // for folders this is sent once with the folder's id
+
+    private int transferId;
+
+    public FileComplete() {}
+
+    public FileComplete(int transferId) {
+        this.transferId = transferId;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.FILE_COMPLETE;
+    }
+
+    public int getTransferId() { return transferId; }
+}
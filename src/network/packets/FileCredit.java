@@ -0,0 +1,40 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class FileCredit implements Packet {
+    // flow control; receiver letting the sender send this many more bytes of the transfer's chunks
+    // one is sent with the FileResponse, then more as chunks are written and checked; for folders its the folder's id
+
+    private int transferId;
+    private int bytes;
+
+    public FileCredit() {}
+
+    public FileCredit(int transferId, int bytes) {
+        this.transferId = transferId;
+        this.bytes = bytes;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+        out.writeInt(bytes);
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+        bytes = in.readInt();
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.FILE_CREDIT;
+    }
+
+    public int getTransferId() { return transferId; }
+    public int getBytes() { return bytes; }
+}
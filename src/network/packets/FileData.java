@@ -1,43 +1,216 @@
 package network.packets;
 
+import util.BufferPool;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
 
 public class FileData implements Packet {
+    // transfer id is only on the wire as a FileChunk, older peers only know FileData and one transfer at a time
+    private int transferId;
+    private boolean hasTransferId;
     private int index;
     private int length;
+    private int checksum; // crc32c of the chunk, only on FileChunks; see ChunkVerifier
     private byte[] data;
 
+    // zero-copy upload; the chunk is a region of the source file rather than a byte[]
+    private FileChannel source;
+    private long position;
+
+    // pooled receive; payload is read from the socket channel into a reusable direct buffer
+    private static final BufferPool bufferPool = new BufferPool(65536, 32); //64KB chunks
+    private static final int MAX_LENGTH = 4 * 1024 * 1024; //4MB, the most a sender may use; see ChunkSizer
+    private static final BufferPool largeBufferPool = new BufferPool(MAX_LENGTH, 4); // chunks past 64KB
+    private ByteBuffer buffer;
+
     public FileData() {}
 
-    public FileData(int index, byte[] data) throws IOException {
+    // empty FileChunk to read into
+    public static FileData withTransferId() {
+        FileData data = new FileData();
+        data.hasTransferId = true;
+        return data;
+    }
+
+    public FileData(int transferId, int index, byte[] data) {
+        this(transferId, index, data, checksum(data));
+    }
+
+    public FileData(int transferId, int index, byte[] data, int checksum) {
+        this.transferId = transferId;
+        this.hasTransferId = transferId != 0;
         this.index = index;
         this.length = data.length;
         this.data = data;
+        this.checksum = checksum;
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    public FileData(int transferId, int index, FileChannel source, long position, int length, int checksum) {
+        this.transferId = transferId;
+        this.hasTransferId = transferId != 0;
+        this.index = index;
+        this.length = length;
+        this.checksum = checksum;
+        this.source = source;
+        this.position = position;
     }
 
     @Override
     public void write(DataOutputStream out) throws IOException {
+        writeHeader(out);
+
+        if (source != null) {
+            out.flush();
+            transferTo(Channels.newChannel(out)); // socket has no channel; falls back to a copy
+        } else {
+            out.write(data, 0, length);
+        }
+    }
+
+    // only the transfer id/index/length/checksum, the payload follows via transferTo(); or write()
+    public void writeHeader(DataOutputStream out) throws IOException {
+        if (hasTransferId) out.writeInt(transferId);
         out.writeInt(index);
         out.writeInt(length);
-        out.write(data, 0, length);
+        if (hasTransferId) out.writeInt(checksum);
+    }
+
+    // send the chunk straight from the file to the socket (sendfile where the os supports it)
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (sent < length) {
+            long transferred = source.transferTo(position + sent, length - sent, target);
+            if (transferred == 0) {
+                checkNotEnded(sent);
+                transferred = copyPart(target, sent); // see copyPart()
+            }
+            sent += transferred;
+        }
+    }
+
+    // transferTo returns 0 rather than -1 past the end of the file, same as when the socket is full; without this a
+    // file truncated mid-upload would have the chunk retried forever
+    private void checkNotEnded(long offset) throws IOException {
+        if (position + offset >= source.size()) throw new EOFException("File ended before chunk " + index + " was sent");
+    }
+
+    // transferTo returns 0 when the socket cant take more right now, which a blocking socket still does on a
+    // virtual thread (the os socket is non-blocking underneath); copying through a buffer parks properly instead
+    private long copyPart(WritableByteChannel target, long offset) throws IOException {
+        ByteBuffer part = bufferPool.acquire((int) Math.min(length - offset, bufferPool.getBufferSize()));
+
+        try {
+            if (source.read(part, position + offset) <= 0) throw new EOFException("File ended before chunk " + index + " was sent");
+            part.flip();
+
+            int copied = part.remaining();
+            while (part.hasRemaining()) {
+                target.write(part);
+            }
+            return copied;
+        } finally {
+            bufferPool.release(part);
+        }
+    }
+
+    // single non-blocking attempt for nio connections; returns how much of the chunk went out, starting at offset
+    public long transferPart(WritableByteChannel target, long offset) throws IOException {
+        long transferred = source.transferTo(position + offset, length - offset, target);
+        if (transferred == 0) checkNotEnded(offset);
+        return transferred;
+    }
+
+    public int getHeaderSize() {
+        return hasTransferId ? 16 : 8;
     }
 
     @Override
     public void read(DataInputStream in) throws IOException {
+        if (hasTransferId) transferId = in.readInt();
         index = in.readInt();
         length = in.readInt();
+        if (hasTransferId) checksum = in.readInt();
+        checkLength(MAX_LENGTH);
         data = new byte[length];
         in.readFully(data);
     }
 
+    // allocation-free alternative to read(in); must be paired with release() once the chunk is written
+    // frameLength is the binary frame's payload length, the chunk has to fill it exactly; -1 for legacy frames
+    public void read(DataInputStream in, ReadableByteChannel channel, int frameLength) throws IOException {
+        if (hasTransferId) transferId = in.readInt();
+        index = in.readInt();
+        length = in.readInt();
+        if (hasTransferId) checksum = in.readInt();
+        checkLength(MAX_LENGTH);
+        if (frameLength >= 0 && length != frameLength - getHeaderSize()) throw new IOException("Chunk length doesnt match its frame: " + length);
+
+        buffer = acquire(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("Socket closed mid-chunk");
+        }
+        buffer.flip();
+    }
+
+    // nio connections have the whole frame in their read buffer already, the chunk is copied into a pooled buffer
+    public void read(ByteBuffer frame) throws IOException {
+        if (hasTransferId) transferId = frame.getInt();
+        index = frame.getInt();
+        length = frame.getInt();
+        if (hasTransferId) checksum = frame.getInt();
+        checkLength(Math.min(MAX_LENGTH, frame.remaining()));
+
+        buffer = acquire(length);
+
+        int limit = frame.limit();
+        frame.limit(frame.position() + length);
+        buffer.put(frame);
+        frame.limit(limit);
+
+        buffer.flip();
+    }
+
+    // length comes from the peer, checked before anything is allocated for it
+    private void checkLength(int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) throw new IOException("Invalid chunk length: " + length);
+    }
+
+    private static ByteBuffer acquire(int length) {
+        return length <= bufferPool.getBufferSize() ? bufferPool.acquire(length) : largeBufferPool.acquire(length);
+    }
+
+    public void release() {
+        bufferPool.release(buffer);
+        largeBufferPool.release(buffer);
+        buffer = null;
+    }
+
     @Override
-    public String getId() {
-        return "FileData";
+    public PacketType getType() {
+        return hasTransferId ? PacketType.FILE_CHUNK : PacketType.FILE_DATA;
     }
 
+    public int getTransferId() { return transferId; }
     public int getIndex() { return index; }
     public int getLength() { return length; }
+    public int getChecksum() { return checksum; }
+    public boolean hasChecksum() { return hasTransferId; }
     public byte[] getData() { return data; }
+    public ByteBuffer getBuffer() { return buffer; }
+    public boolean isFileRegion() { return source != null; }
 }
@@ -5,18 +5,39 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class FileFooter implements Packet {
+    private int transferId; // 0 for older peers, which only have one transfer at a time; see FileRequest
+    private byte[] digest = new byte[0]; // sha-256 of the whole file, empty for older peers
+
     public FileFooter() {}
 
+    public FileFooter(int transferId, byte[] digest) {
+        this.transferId = transferId;
+        this.digest = digest;
+    }
+
     @Override
     public void write(DataOutputStream out) throws IOException {
+        if (transferId == 0) return;
+
+        out.writeInt(transferId);
+        out.writeInt(digest.length);
+        out.write(digest);
     }
 
     @Override
     public void read(DataInputStream in) throws IOException {
+        if (in.available() > 0) { // older peers stop here, see Packet
+            transferId = in.readInt();
+            digest = new byte[in.readInt()];
+            in.readFully(digest);
+        }
     }
 
     @Override
-    public String getId() {
-        return "FileFooter";
+    public PacketType getType() {
+        return PacketType.FILE_FOOTER;
     }
+
+    public int getTransferId() { return transferId; }
+    public byte[] getDigest() { return digest; }
 }
@@ -10,13 +10,15 @@ public class FileHeader implements Packet {
     private String fileName;
     private long fileSize;
     private int chunkSize;
+    private int transferId; // 0 for older peers, which only have one transfer at a time; see FileRequest
 
     public FileHeader() {}
 
-    public FileHeader(Path path) throws IOException {
+    public FileHeader(int transferId, Path path, int chunkSize) throws IOException {
+        this.transferId = transferId;
         this.fileName = path.getFileName().toString();
         this.fileSize = Files.size(path);
-        this.chunkSize = 65536; //64KB
+        this.chunkSize = chunkSize;
     }
 
     @Override
@@ -24,6 +26,7 @@ public class FileHeader implements Packet {
         out.writeUTF(fileName);
         out.writeLong(fileSize);
         out.writeInt(chunkSize);
+        if (transferId != 0) out.writeInt(transferId);
     }
 
     @Override
@@ -31,14 +34,16 @@ public class FileHeader implements Packet {
         fileName = in.readUTF();
         fileSize = in.readLong();
         chunkSize = in.readInt();
+        if (in.available() > 0) transferId = in.readInt(); // older peers stop here, see Packet
     }
 
     @Override
-    public String getId() {
-        return "FileHeader";
+    public PacketType getType() {
+        return PacketType.FILE_HEADER;
     }
 
     public String getFileName() { return fileName; }
     public long getFileSize() { return fileSize; }
     public int getChunkSize() { return chunkSize; }
+    public int getTransferId() { return transferId; }
 }
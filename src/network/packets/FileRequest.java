@@ -10,6 +10,18 @@ public class FileRequest implements Packet {
     private String fileName;
     private long fileSize;
 
+    // multi-stream; how many extra data connections the sender wants, and the chunk size so
+    // the receiver can place chunks arriving on any of them before the FileHeader
+    // token is set when the sender is the side with the open port, the peer joins data streams with it
+    private int streams;
+    private int chunkSize = 65536; //64KB
+    private int maxChunkSize = 65536; // chunks are whole multiples of chunkSize up to this, chunk i still starts at i * chunkSize
+    private long token;
+    private long lastModified; // resuming; a partial download only continues if the source hasnt changed
+    private int transferId; // picked by the sender, every other file packet of this transfer carries it
+    private boolean isDelta; // chunk hashes are offered after the FileResponse, see DeltaOffer
+    private boolean isExtended; // only sent to peers that have sent Hello, older peers would read the extra fields as the next packet
+
     public FileRequest() {}
 
     public FileRequest(Path path) throws IOException {
@@ -17,23 +29,63 @@ public class FileRequest implements Packet {
         this.fileSize = Files.size(path);
     }
 
+    public FileRequest(int transferId, Path path, int streams, int chunkSize, int maxChunkSize, long token, boolean isDelta) throws IOException {
+        this(path);
+        this.transferId = transferId;
+        this.streams = streams;
+        this.chunkSize = chunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.token = token;
+        this.lastModified = Files.getLastModifiedTime(path).toMillis();
+        this.isDelta = isDelta;
+        this.isExtended = true;
+    }
+
     @Override
     public void write(DataOutputStream out) throws IOException {
         out.writeUTF(fileName);
         out.writeLong(fileSize);
+        if (!isExtended) return;
+
+        out.writeInt(streams);
+        out.writeInt(chunkSize);
+        out.writeLong(token);
+        out.writeLong(lastModified);
+        out.writeInt(transferId);
+        out.writeBoolean(isDelta);
+        out.writeInt(maxChunkSize);
     }
 
     @Override
     public void read(DataInputStream in) throws IOException {
         fileName = in.readUTF();
         fileSize = in.readLong();
+
+        if (in.available() > 0) { // older peers stop here, see Packet
+            streams = in.readInt();
+            chunkSize = in.readInt();
+            token = in.readLong();
+            lastModified = in.readLong();
+            transferId = in.readInt();
+            isDelta = in.readBoolean();
+            maxChunkSize = in.readInt();
+            isExtended = true;
+        }
     }
 
     @Override
-    public String getId() {
-        return "FileRequest";
+    public PacketType getType() {
+        return PacketType.FILE_REQUEST;
     }
 
     public String getFileName() { return fileName; }
     public long getFileSize() { return fileSize; }
+    public int getStreams() { return streams; }
+    public int getChunkSize() { return chunkSize; }
+    public int getMaxChunkSize() { return maxChunkSize; }
+    public long getToken() { return token; }
+    public long getLastModified() { return lastModified; }
+    public int getTransferId() { return transferId; }
+    public boolean isDelta() { return isDelta; }
+    public boolean isExtended() { return isExtended; }
 }
@@ -0,0 +1,48 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class FileResend implements Packet {
+    // receiver asking for chunks again whose checksum didnt match, instead of failing the whole transfer
+
+    private int transferId;
+    private int[] indexes;
+
+    public FileResend() {}
+
+    public FileResend(int transferId, int[] indexes) {
+        this.transferId = transferId;
+        this.indexes = indexes;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+        out.writeInt(indexes.length);
+        for (int index : indexes) {
+            out.writeInt(index);
+        }
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / 4) throw new IOException("Invalid resend count: " + count);
+
+        indexes = new int[count];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = in.readInt();
+        }
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.FILE_RESEND;
+    }
+
+    public int getTransferId() { return transferId; }
+    public int[] getIndexes() { return indexes; }
+}
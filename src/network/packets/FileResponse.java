@@ -10,24 +10,69 @@ public class FileResponse implements Packet {
 
     private boolean response;
 
+    // multi-stream; how many extra data connections the receiver agreed to
+    // token is set when the receiver is the side with the open port, the peer joins data streams with it
+    private int streams;
+    private long token;
+    private byte[] received = new byte[0]; // resuming; bitmap of chunks the receiver already has, see ChunkBitmap
+    private int transferId;
+    private boolean isExtended; // only sent to peers that have sent Hello, older peers would read the extra fields as the next packet
+
     public FileResponse() {}
 
     public FileResponse(boolean response) { this.response = response; }
 
+    public FileResponse(int transferId, boolean response) {
+        this.transferId = transferId;
+        this.response = response;
+        this.isExtended = transferId != 0;
+    }
+
+    public FileResponse(int transferId, boolean response, int streams, long token, byte[] received) {
+        this.transferId = transferId;
+        this.response = response;
+        this.streams = streams;
+        this.token = token;
+        this.received = received;
+        this.isExtended = true;
+    }
+
     @Override
     public void write(DataOutputStream out) throws IOException {
         out.writeBoolean(response);
+        if (!isExtended) return;
+
+        out.writeInt(streams);
+        out.writeLong(token);
+        out.writeInt(received.length);
+        out.write(received);
+        out.writeInt(transferId);
     }
 
     @Override
     public void read(DataInputStream in) throws IOException {
         response = in.readBoolean();
+
+        if (in.available() > 0) { // older peers stop here, see Packet
+            streams = in.readInt();
+            token = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) throw new IOException("Invalid resume bitmap length: " + length);
+
+            received = new byte[length];
+            in.readFully(received);
+            transferId = in.readInt();
+        }
     }
 
     @Override
-    public String getId() {
-        return "FileResponse";
+    public PacketType getType() {
+        return PacketType.FILE_RESPONSE;
     }
 
     public boolean getResponse() { return response; }
+    public int getStreams() { return streams; }
+    public long getToken() { return token; }
+    public byte[] getReceived() { return received; }
+    public int getTransferId() { return transferId; }
 }
@@ -0,0 +1,35 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class FileStreamJoin implements Packet {
+    // first packet on an extra data connection for a multi-stream transfer, instead of Accept
+    // token comes from the FileRequest/FileResponse of the side that opened its port
+
+    private long token;
+
+    public FileStreamJoin() {}
+
+    public FileStreamJoin(long token) {
+        this.token = token;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(token);
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        token = in.readLong();
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.FILE_STREAM_JOIN;
+    }
+
+    public long getToken() { return token; }
+}
@@ -0,0 +1,65 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FolderManifest implements Packet {
+    // a batch of a folder transfer's files, sent just ahead of their chunks so a huge folder never needs one huge packet
+    // paths are relative to the folder and use '/' whatever the sender's os
+
+    public record Entry(String path, long size, long lastModified) {}
+
+    public static final int MAX_ENTRIES = 512; // per packet, the sender splits the folder into batches of this many
+    private static final int MIN_ENTRY_SIZE = 2 + 8 + 8; // empty path
+
+    private int transferId; // of the folder
+    private int firstIndex; // index of entries.get(0) within the folder
+    private List<Entry> entries = new ArrayList<>();
+
+    public FolderManifest() {}
+
+    public FolderManifest(int transferId, int firstIndex, List<Entry> entries) {
+        this.transferId = transferId;
+        this.firstIndex = firstIndex;
+        this.entries = entries;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+        out.writeInt(firstIndex);
+        out.writeInt(entries.size());
+
+        for (Entry entry : entries) {
+            out.writeUTF(entry.path());
+            out.writeLong(entry.size());
+            out.writeLong(entry.lastModified());
+        }
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+        firstIndex = in.readInt();
+
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ENTRIES || count > in.available() / MIN_ENTRY_SIZE) throw new IOException("Invalid folder manifest size: " + count);
+
+        entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(in.readUTF(), in.readLong(), in.readLong()));
+        }
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.FOLDER_MANIFEST;
+    }
+
+    public int getTransferId() { return transferId; }
+    public int getFirstIndex() { return firstIndex; }
+    public List<Entry> getEntries() { return entries; }
+}
@@ -0,0 +1,61 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class FolderRequest implements Packet {
+    // one request for a whole folder, answered with a FileResponse
+    // once accepted the files are described by FolderManifest packets and sent without asking for each one
+    // file i of the folder is transfer transferId + 1 + i
+
+    private int transferId;
+    private String folderName;
+    private int fileCount;
+    private long totalSize;
+    private int chunkSize;
+    private int maxChunkSize; // see FileRequest
+
+    public FolderRequest() {}
+
+    public FolderRequest(int transferId, String folderName, int fileCount, long totalSize, int chunkSize, int maxChunkSize) {
+        this.transferId = transferId;
+        this.folderName = folderName;
+        this.fileCount = fileCount;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(transferId);
+        out.writeUTF(folderName);
+        out.writeInt(fileCount);
+        out.writeLong(totalSize);
+        out.writeInt(chunkSize);
+        out.writeInt(maxChunkSize);
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+        transferId = in.readInt();
+        folderName = in.readUTF();
+        fileCount = in.readInt();
+        totalSize = in.readLong();
+        chunkSize = in.readInt();
+        maxChunkSize = in.readInt();
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.FOLDER_REQUEST;
+    }
+
+    public int getTransferId() { return transferId; }
+    public String getFolderName() { return folderName; }
+    public int getFileCount() { return fileCount; }
+    public long getTotalSize() { return totalSize; }
+    public int getChunkSize() { return chunkSize; }
+    public int getMaxChunkSize() { return maxChunkSize; }
+}
@@ -0,0 +1,25 @@
+package network.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class Hello implements Packet {
+    // sent right after Accept to tell the peer it can use one byte packet codes instead of string ids
+    // has no payload so older peers that dont know it can skip it without losing their place in the stream
+
+    public Hello() {}
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+    }
+
+    @Override
+    public void read(DataInputStream in) throws IOException {
+    }
+
+    @Override
+    public PacketType getType() {
+        return PacketType.HELLO;
+    }
+}
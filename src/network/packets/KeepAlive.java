@@ -16,7 +16,7 @@ public class KeepAlive implements Packet {
     }
 
     @Override
-    public String getId() {
-        return "KeepAlive";
+    public PacketType getType() {
+        return PacketType.KEEP_ALIVE;
     }
 }
@@ -24,8 +24,8 @@ public class Message implements Packet {
     }
 
     @Override
-    public String getId() {
-        return "Message";
+    public PacketType getType() {
+        return PacketType.MESSAGE;
     }
 
     public String getText() { return text; }
@@ -5,7 +5,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 public interface Packet {
+    // fields added to a packet after v1.4 go on the end and are only read if in.available() > 0
+    // binary frames are read from their own buffer so available() is exact; legacy frames always report 0
+
     void write(DataOutputStream out) throws IOException;
     void read(DataInputStream in) throws IOException;
-    String getId();
+    PacketType getType();
+
+    default String getId() { return getType().getId(); }
 }
@@ -1,24 +1,28 @@
 package network.packets;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class PacketFactory {
 
     // used purely for receiving packets so an empty packet can be made, then packet.read(in);
+    // binary frames are looked up by their one byte code, legacy frames by their string id
+
+    private static final PacketType[] byCode = new PacketType[256];
+    private static final Map<String, PacketType> byId = new HashMap<>();
+
+    static {
+        for (PacketType type : PacketType.values()) {
+            byCode[type.getCode()] = type;
+            byId.put(type.getId(), type);
+        }
+    }
+
+    public static PacketType type(int code) {
+        return byCode[code & 0xFF];
+    }
 
-    public static Packet create(String id) {
-        return switch (id) {
-            case "Ping" -> new Ping();
-            case "Message" -> new Message();
-            case "Accept" -> new Accept();
-            case "Auth" -> new Auth();
-            case "KeepAlive" -> new KeepAlive();
-            case "FileData" -> new FileData();
-            case "FileHeader" -> new FileHeader();
-            case "FileFooter" -> new FileFooter();
-            case "FileResponse" -> new FileResponse();
-            case "FileRequest" -> new FileRequest();
-            case "FileCancelUpload" -> new FileCancelUpload();
-            case "FileCancelDownload" -> new FileCancelDownload();
-            default -> null;
-        };
+    public static PacketType type(String id) {
+        return byId.get(id);
     }
 }
@@ -0,0 +1,49 @@
+package network.packets;
+
+import java.util.function.Supplier;
+
+public enum PacketType {
+    // codes are sent over the wire, never reuse or renumber them
+    // 0 is reserved; a legacy frame starts with the 0 high byte of writeUTF's length
+    PING(1, "Ping", Ping::new),
+    MESSAGE(2, "Message", Message::new),
+    ACCEPT(3, "Accept", Accept::new),
+    AUTH(4, "Auth", Auth::new),
+    KEEP_ALIVE(5, "KeepAlive", KeepAlive::new),
+    FILE_DATA(6, "FileData", FileData::new),
+    FILE_HEADER(7, "FileHeader", FileHeader::new),
+    FILE_FOOTER(8, "FileFooter", FileFooter::new),
+    FILE_RESPONSE(9, "FileResponse", FileResponse::new),
+    FILE_REQUEST(10, "FileRequest", FileRequest::new),
+    FILE_CANCEL_UPLOAD(11, "FileCancelUpload", FileCancelUpload::new),
+    FILE_CANCEL_DOWNLOAD(12, "FileCancelDownload", FileCancelDownload::new),
+    HELLO(13, "Hello", Hello::new),
+    FILE_STREAM_JOIN(14, "FileStreamJoin", FileStreamJoin::new),
+    FILE_CHUNK(15, "FileChunk", FileData::withTransferId),
+    FOLDER_REQUEST(16, "FolderRequest", FolderRequest::new),
+    FOLDER_MANIFEST(17, "FolderManifest", FolderManifest::new),
+    FILE_RESEND(18, "FileResend", FileResend::new),
+    FILE_COMPLETE(19, "FileComplete", FileComplete::new),
+    DELTA_OFFER(20, "DeltaOffer", DeltaOffer::new),
+    DELTA_REPLY(21, "DeltaReply", DeltaReply::new),
+    COMPRESSION(22, "Compression", Compression::new),
+    COMPRESSED(23, "Compressed", Compressed::new),
+    FILE_CREDIT(24, "FileCredit", FileCredit::new);
+
+    private final int code;
+    private final String id;
+    private final Supplier<Packet> factory;
+
+    PacketType(int code, String id, Supplier<Packet> factory) {
+        this.code = code;
+        this.id = id;
+        this.factory = factory;
+    }
+
+    public int getCode() { return code; }
+    public String getId() { return id; }
+    public Packet create() { return factory.get(); }
+
+    // FileData and FileChunk are read straight into pooled buffers instead of through create()
+    public boolean isFileData() { return this == FILE_DATA || this == FILE_CHUNK; }
+}
@@ -26,8 +26,8 @@ public class Ping implements Packet {
     }
 
     @Override
-    public String getId() {
-        return "Ping";
+    public PacketType getType() {
+        return PacketType.PING;
     }
 
     public long getTimestamp() {
@@ -24,7 +24,7 @@ public class Template implements Packet {
     }
 
     @Override
-    public String getId() {
-        return "Template";
+    public PacketType getType() {
+        return null; // add an entry to PacketType with a new code and return it here
     }
 }
@@ -0,0 +1,115 @@
+package processors;
+
+import network.Peer;
+import network.packets.Ping;
+
+class ChunkSizer {
+    // picks the size of each outgoing chunk, one per peer since every upload to it shares the link
+    // big chunks cost less per byte (fewer packets, checksums and disk reads on both sides), small ones keep a
+    // chunk from holding up everything queued behind it and make a resend cheaper. so a chunk is sized to a few
+    // milliseconds of the measured throughput, less the longer the round trip, and halved while the peer keeps
+    // asking for resends. chunks are always whole units, the receiver places them by index * unit whatever their size
+
+    static final int UNIT = 16 * 1024; //16KB, also the smallest chunk
+    static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024; //4MB
+    private static final int INITIAL_CHUNK_SIZE = 64 * 1024; // until theres a measurement
+
+    private static final long CHUNK_NANOS = 5_000_000; // 5ms of the link per chunk
+    private static final long SHORT_RTT_NANOS = 20_000_000; // past this, chunks get smaller as the rtt grows
+    private static final long WINDOW_NANOS = 250_000_000; // throughput is measured over this
+    private static final long PING_INTERVAL_NANOS = 2_000_000_000L;
+    private static final long PENALTY_NANOS = 5_000_000_000L; // a resend halves the max for this long
+
+    private final Peer peer;
+
+    // only used by the sender thread
+    private long windowStart;
+    private long windowBytes;
+    private double bytesPerNano; // smoothed
+
+    // rtt is the lowest of the last few pings; pings queue behind chunks, the lowest is the closest to the link itself
+    private final long[] rtts = new long[8];
+    private int rttCount;
+    private volatile long rttNanos = -1;
+    private long pingTimestamp = -1; // of the last ping sent from here, so its echo isnt logged
+    private long pingSentNanos;
+    private long lastPing;
+
+    private volatile int maxChunkSize = MAX_CHUNK_SIZE;
+    private volatile long penaltyUntil;
+
+    ChunkSizer(Peer peer) {
+        this.peer = peer;
+    }
+
+    int nextChunkSize() {
+        long now = System.nanoTime();
+        if (lastPing == 0 || now - lastPing > PING_INTERVAL_NANOS) ping(now);
+        if (penaltyUntil != 0 && now > penaltyUntil) { // no resends for a while, let chunks grow again
+            maxChunkSize = Math.min(maxChunkSize * 2, MAX_CHUNK_SIZE);
+            penaltyUntil = maxChunkSize == MAX_CHUNK_SIZE ? 0 : now + PENALTY_NANOS;
+        }
+
+        if (bytesPerNano == 0) return Math.min(INITIAL_CHUNK_SIZE, maxChunkSize);
+
+        long chunkNanos = CHUNK_NANOS;
+        long rtt = rttNanos;
+        if (rtt > SHORT_RTT_NANOS) chunkNanos = chunkNanos * SHORT_RTT_NANOS / rtt;
+
+        long size = (long) (bytesPerNano * chunkNanos);
+        size = Math.max(UNIT, Math.min(size, maxChunkSize));
+        return Integer.highestOneBit((int) size); // powers of two, so the size doesnt wander chunk to chunk
+    }
+
+    // called by the sender thread once a chunk is queued; the write queues are bounded, so once theyre full
+    // chunks are queued only as fast as the link takes them
+    void chunkSent(int length) {
+        long now = System.nanoTime();
+        if (windowStart == 0) windowStart = now;
+
+        windowBytes += length;
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) return;
+
+        double measured = (double) windowBytes / elapsed;
+        bytesPerNano = bytesPerNano == 0 ? measured : bytesPerNano * 0.75 + measured * 0.25;
+        windowStart = now;
+        windowBytes = 0;
+    }
+
+    // the sender thread stopped; a pause isnt a slow link
+    void idle() {
+        windowStart = 0;
+        windowBytes = 0;
+    }
+
+    void resendRequested() {
+        maxChunkSize = Math.max(maxChunkSize / 2, UNIT);
+        penaltyUntil = System.nanoTime() + PENALTY_NANOS;
+    }
+
+    private void ping(long now) {
+        lastPing = now;
+        Ping ping = new Ping();
+        synchronized (this) {
+            pingTimestamp = ping.getTimestamp();
+            pingSentNanos = now;
+        }
+        peer.writePacket(ping);
+    }
+
+    // true if it was one of ours, the cmd 'ping' ones are still logged
+    synchronized boolean pingReturned(Ping ping) {
+        boolean isOurs = ping.getTimestamp() == pingTimestamp;
+        long rtt = isOurs ? System.nanoTime() - pingSentNanos : (System.currentTimeMillis() - ping.getTimestamp()) * 1_000_000;
+        if (isOurs) pingTimestamp = -1;
+
+        rtts[rttCount++ % rtts.length] = rtt;
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < Math.min(rttCount, rtts.length); i++) {
+            lowest = Math.min(lowest, rtts[i]);
+        }
+        rttNanos = lowest;
+        return isOurs;
+    }
+}
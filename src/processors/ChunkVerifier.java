@@ -0,0 +1,197 @@
+package processors;
+
+import network.Peer;
+import util.ChunkStore;
+import util.ThreadUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+class ChunkVerifier {
+    // receive side of integrity checking, one per peer
+    // the socket readers only write chunks to disk and queue them here, so checksumming runs alongside the next
+    // chunks being read instead of in front of them. each chunk is read back from disk (page cache) and its crc32c
+    // compared to the one it was sent with; good chunks are counted and fed to the whole-file digest in order,
+    // bad ones are asked for again with FileResend
+
+    private final FileProcessor processor;
+    private final Peer peer;
+
+    private record Task(Download download, int index, int length, int checksum) {}
+
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>(); // no data in here, just where to find it on disk
+    private boolean isRunning;
+
+    // only used by the verifier thread
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer buffer;
+    private final Map<Download, List<Task>> corrupt = new LinkedHashMap<>(); // asked for in one FileResend once the queue is empty
+
+    private final int IDLE_MILLIS = 1000;
+    private final int MAX_RESENDS = 64; // per file; more than that and something other than the network is wrong
+    private final int MAX_DIGEST_UNITS = 64;
+
+    ChunkVerifier(FileProcessor processor, Peer peer) {
+        this.processor = processor;
+        this.peer = peer;
+    }
+
+    void submit(Download download, int index, int length, int checksum) {
+        tasks.add(new Task(download, index, length, checksum));
+
+        synchronized (this) {
+            if (isRunning) return;
+            isRunning = true;
+        }
+
+        ThreadUtil.start("file-verify-" + peer.ip(), this::run);
+    }
+
+    private static final int FOOTER = -1;
+    private static final int DELTA_OFFER = -2;
+
+    // footer arrived; chunks from an earlier attempt that resumed still have to go through the digest
+    void submitFooter(Download download) {
+        submit(download, FOOTER, 0, 0);
+    }
+
+    // delta mode; every DeltaOffer is in, chunks found in the store are copied into the file here
+    void submitDeltaOffer(Download download) {
+        submit(download, DELTA_OFFER, 0, 0);
+    }
+
+    private void run() {
+        while (true) {
+            Task task = tasks.poll();
+            if (task == null) {
+                requestResends();
+                task = nextTask();
+                if (task == null) return;
+            }
+
+            Download download = task.download;
+            if (download.state != Download.State.RECEIVING) continue; // finished or cancelled
+
+            try {
+                switch (task.index) {
+                    case FOOTER -> {
+                        digestVerified(download);
+                        processor.finishIfComplete(download);
+                    }
+                    case DELTA_OFFER -> processor.applyDeltaOffer(download);
+                    default -> {
+                        verify(download, task);
+                        processor.chunkPersisted(download, task.length); // good or not, its off the network
+                    }
+                }
+            } catch (IOException e) {
+                if (download.state == Download.State.RECEIVING) peer.log("Error when verifying file chunk: " + e.getMessage());
+            }
+        }
+    }
+
+    // thread stays up for a moment once the queue is empty so a steady transfer doesnt start one per chunk
+    private Task nextTask() {
+        try {
+            Task task = tasks.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            if (task != null) return task;
+        } catch (InterruptedException _) {}
+
+        synchronized (this) {
+            if (!tasks.isEmpty()) return tasks.poll();
+            isRunning = false;
+            return null;
+        }
+    }
+
+    private void verify(Download download, Task task) throws IOException {
+        int units = download.unitsOf(task.length); // a chunk can cover several indexes, see ChunkSizer
+        int end = task.index + units;
+        if (download.verified.nextClearBit(task.index) >= end) return; // sent twice, the first copy was fine
+
+        ByteBuffer chunk = read(download.channel, download.offsetOf(task.index), task.length);
+        crc.reset();
+        crc.update(chunk);
+
+        if ((int) crc.getValue() != task.checksum) {
+            corrupt.computeIfAbsent(download, _ -> new ArrayList<>()).add(task);
+            return;
+        }
+
+        long bytes = 0; // only what wasnt already verified, a resend can overlap a bigger chunk that arrived late
+        for (int i = download.verified.nextClearBit(task.index); i < end; i = download.verified.nextClearBit(i + 1)) {
+            bytes += download.lengthOf(i);
+        }
+        download.verified.set(task.index, end);
+        if (download.hashes != null) store(download.hashes[task.index], chunk.rewind()); // the next version of the file can use it
+
+        if (task.index == download.digestedChunks) { // in order, digest it while its still in the buffer
+            download.digest.update(chunk.rewind());
+            download.digestedChunks = end;
+        }
+        digestVerified(download);
+
+        processor.chunkVerified(download, task.index, units, bytes);
+    }
+
+    private void store(byte[] hash, ByteBuffer chunk) {
+        try {
+            ChunkStore.write(hash, chunk);
+        } catch (IOException e) {
+            peer.log("Error when saving chunk to the chunk store: " + e.getMessage());
+        }
+    }
+
+    // the digest needs the file in order, chunks that came early wait until the ones before them are verified
+    private void digestVerified(Download download) throws IOException {
+        while (download.verified.get(download.digestedChunks)) {
+            int index = download.digestedChunks;
+            int end = Math.min(download.verified.nextClearBit(index), index + MAX_DIGEST_UNITS); // a run of them in one read
+            long position = download.offsetOf(index);
+            long last = download.offsetOf(end - 1) + download.lengthOf(end - 1);
+            download.digest.update(read(download.channel, position, (int) (last - position)));
+            download.digestedChunks = end;
+        }
+    }
+
+    private void requestResends() {
+        for (Map.Entry<Download, List<Task>> entry : corrupt.entrySet()) {
+            Download download = entry.getKey();
+            List<Task> chunks = entry.getValue();
+            if (download.state != Download.State.RECEIVING) continue;
+
+            download.resends += chunks.size();
+            if (download.resends > MAX_RESENDS) {
+                processor.verificationFailed(download, "too many corrupt chunks");
+                continue;
+            }
+
+            // asked for by index, the peer sends each one again on its own
+            int[] indexes = chunks.stream().flatMapToInt(task -> IntStream.range(task.index, task.index + download.unitsOf(task.length))).toArray();
+            peer.log("Download #" + download.id + ": " + chunks.size() + " chunk(s) failed their checksum; asking the peer to send them again");
+            processor.requestResend(download, indexes);
+        }
+        corrupt.clear();
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        if (buffer == null || buffer.capacity() < length) buffer = ByteBuffer.allocateDirect(length);
+
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("File ended before chunk at " + position);
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,124 @@
+package processors;
+
+import network.Peer;
+import network.packets.DeltaOffer;
+import network.packets.FileRequest;
+import util.ChunkBitmap;
+import util.FileUtil;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+class Download {
+    // one file being received from a peer, from its FileRequest until every chunk and the footer are in
+
+    enum State {
+        PEER_REQUESTED,
+        RECEIVING,
+        DONE
+    }
+
+    final int id; // picked by the peer, 0 if its an older peer
+    final FileRequest request; // null for a folder's files
+    final String fileName;
+    final long fileSize;
+    final int chunkSize; // chunk i starts at i * chunkSize, but can be several chunkSizes long, see ChunkSizer
+    final int maxChunkSize;
+    final long lastModified;
+    final FolderDownload folder; // null unless this is one of a folder's files
+    volatile State state = State.PEER_REQUESTED;
+    ScheduledFuture<?> requestTimeout;
+
+    volatile FileChannel channel;
+    ChunkBitmap chunkBitmap; // null for older peers, their downloads cant be resumed
+    Path target;
+
+    // multi-stream; extra connections chunks arrive on, closed once it finishes
+    long token;
+    final List<Peer> streams = new CopyOnWriteArrayList<>();
+
+    // integrity checking, see ChunkVerifier; null digest for older peers, they dont send checksums
+    final MessageDigest digest;
+    final BitSet verified = new BitSet();
+    int digestedChunks;
+    byte[] expectedDigest; // from the footer
+    int resends;
+    int ungranted; // flow control; bytes written and checked since the last FileCredit, only used by the verifier thread
+
+    // delta mode; offsets of the peer's content-defined chunks once every DeltaOffer is in, see Upload
+    final List<DeltaOffer> offers = new ArrayList<>();
+    volatile long[] offsets;
+    byte[][] hashes; // verified chunks go in the ChunkStore under these
+
+    long bytesReceived;
+    boolean footerReceived;
+    int lastPercent = -1;
+    long startTime;
+
+    Download(FileRequest request) {
+        this.id = request.getTransferId();
+        this.request = request;
+        this.fileName = request.getFileName();
+        this.fileSize = request.getFileSize();
+        this.chunkSize = request.getChunkSize();
+        this.maxChunkSize = request.getMaxChunkSize();
+        this.lastModified = request.getLastModified();
+        this.folder = null;
+        this.digest = id != 0 ? FileUtil.newDigest() : null;
+    }
+
+    // folder file; accepted along with the folder, opened when its first chunk arrives
+    Download(int id, FolderDownload folder, String fileName, long fileSize, long lastModified, Path target) {
+        this.id = id;
+        this.request = null;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = folder.chunkSize;
+        this.maxChunkSize = folder.maxChunkSize;
+        this.lastModified = lastModified;
+        this.folder = folder;
+        this.target = target;
+        this.state = State.RECEIVING;
+        this.digest = FileUtil.newDigest();
+    }
+
+    int chunkCount() {
+        return offsets != null ? offsets.length - 1 : (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    long offsetOf(int index) {
+        return offsets != null ? offsets[index] : (long) index * chunkSize;
+    }
+
+    int lengthOf(int index) {
+        return offsets != null ? (int) (offsets[index + 1] - offsets[index]) : (int) Math.min(chunkSize, fileSize - (long) index * chunkSize);
+    }
+
+    // indexes a chunk of this length covers; delta chunks are always one
+    int unitsOf(int length) {
+        return offsets != null ? 1 : Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    // only whole units unless its the end of the file, and never past it
+    boolean isValidChunk(int index, int length) {
+        if (index < 0 || index >= chunkCount() || length < 0) return false;
+        if (offsets != null) return length == lengthOf(index);
+
+        long end = offsetOf(index) + length;
+        return length <= maxChunkSize && end <= fileSize && (length % chunkSize == 0 || end == fileSize);
+    }
+
+    boolean isChecked() {
+        return digest != null;
+    }
+
+    boolean isComplete() {
+        return footerReceived && bytesReceived >= fileSize;
+    }
+}
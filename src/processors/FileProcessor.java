@@ -2,360 +2,1562 @@ package processors;
 
 import main.Main;
 import network.Peer;
+import network.compression.Codec;
 import network.packets.*;
+import util.ChunkBitmap;
+import util.ChunkStore;
+import util.ContentChunker;
 import util.FileUtil;
+import util.MappedFile;
 import util.MainUtil;
+import util.ThreadUtil;
+import util.TokenBucket;
+import network.DataStreams;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 public class FileProcessor {
     private final Peer peer;
+    private final ChunkVerifier verifier;
+    private final ChunkSizer sizer;
 
     public FileProcessor(Peer conn) {
         peer = conn;
+        verifier = new ChunkVerifier(this, conn);
+        sizer = new ChunkSizer(conn);
     }
 
     private void log(String logText) {
         if (peer != null) peer.log(logText);
     }
 
-    enum SendState {
-        IDLE,
-        REQUESTED,
-        SENDING
+    // several uploads and downloads can be in flight at once, keyed by transfer id
+    // ids are picked by the sender, so uploads and downloads each have their own
+    // older peers dont send ids; they get id 0 and only one transfer each way at a time
+    private final Map<Integer, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<Integer, Download> downloads = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTransferId = new AtomicInteger(1);
+
+    // folders are one transfer for the request/response, then one id per file; see FolderRequest
+    private final Map<Integer, FolderUpload> folderUploads = new ConcurrentHashMap<>();
+    private final Map<Integer, FolderDownload> folderDownloads = new ConcurrentHashMap<>();
+
+    // receiving files
+
+    // file is opened when the request is accepted, chunks on data streams can arrive before the FileHeader
+    private void prepareDownload(Download download) throws IOException {
+        download.startTime = System.currentTimeMillis();
+        download.target = FileUtil.getDownloadsDir().resolve(download.fileName);
+
+        // partial file from an earlier attempt at the same file is kept, only the missing chunks get sent
+        FileRequest request = download.request;
+        // delta downloads resume through the chunk store instead, their chunks arent a fixed size
+        download.chunkBitmap = request.isExtended() && !request.isDelta() ? ChunkBitmap.open(download.target, download.fileSize, download.chunkSize, request.getLastModified()) : null;
+        if (download.chunkBitmap != null && download.chunkBitmap.isResumed()) {
+            download.bytesReceived = download.chunkBitmap.getReceivedBytes();
+            download.verified.or(BitSet.valueOf(download.chunkBitmap.toByteArray())); // were checked before they were saved
+            download.channel = FileChannel.open(download.target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log("Resuming download #" + download.id + ": " + FileUtil.getFileSize(download.bytesReceived) + "/" + FileUtil.getFileSize(download.fileSize) + " already received");
+        } else {
+            long replaced = Files.exists(download.target) ? Files.size(download.target) : 0;
+            FileUtil.checkFreeSpace(download.target.getParent(), download.fileSize - replaced);
+            download.channel = FileUtil.createTarget(download.target, download.fileSize);
+        }
     }
 
-    enum ReceiveState {
-        IDLE,
-        PEER_REQUESTED,
-        RECEIVING
+    public void processHeader(FileHeader packet) {
+        Download download = downloads.get(packet.getTransferId());
+        if (download == null || download.state != Download.State.RECEIVING) return;
+
+        log("Downloading file #" + download.id + ": " + download.fileName + " | " + FileUtil.getFileSize(download.fileSize) + (download.streams.isEmpty() ? "" : " | " + (download.streams.size() + 1) + " streams") + (download.offsets != null ? " | delta" : ""));
     }
 
-    private volatile SendState sendState = SendState.IDLE;
-    private volatile ReceiveState receiveState = ReceiveState.IDLE;
+    // called by the peer's reader, and by every data stream's reader, so chunks can arrive out of order and at once
+    public void processData(FileData packet) {
+        Download download = downloads.get(packet.getTransferId());
+        if (download == null || download.state != Download.State.RECEIVING) {
+            //log("DEBUG - Received FileData packet");
+            return;
+        }
 
-    // receiving files vars
-    private OutputStream fileOutputStream;
-    private String fileName;
-    private long fileSize;
-    private long bytesReceived;
-    private int expectedIndex;
+        FileChannel channel = download.channel != null ? download.channel : openFolderFile(download);
+        if (channel == null) return;
 
-    private int lastPercent = -1;
-    private Path target;
-    private long receiveStartTime;
+        int length = packet.getLength();
+        if (!download.isValidChunk(packet.getIndex(), length)) return;
 
-    public void processHeader(FileHeader packet) {
-        if (receiveState != ReceiveState.RECEIVING) return;
-        receiveState = ReceiveState.RECEIVING;
+        try {
+            // pooled direct buffer when read off a socket channel, goes to disk without a heap copy
+            // positional write, chunk i always goes at i * chunkSize whichever stream it came on and however long it is
+            ByteBuffer chunk = packet.getBuffer() != null ? packet.getBuffer() : ByteBuffer.wrap(packet.getData(), 0, length);
+            long position = download.offsetOf(packet.getIndex());
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position); // wrote chunk
+            }
+        } catch (IOException e) {
+            //e.printStackTrace();
+            //log("Error when writing chunk to disk: " + e.getMessage());
+            return;
+        }
 
-        receiveStartTime = System.currentTimeMillis();
+        if (packet.hasChecksum()) { // counted once its checked, see ChunkVerifier
+            verifier.submit(download, packet.getIndex(), length, packet.getChecksum());
+            return;
+        }
 
-        this.fileName = packet.getFileName();
-        this.fileSize = packet.getFileSize();
-        this.bytesReceived = 0;
-        this.expectedIndex = 0;
+        ChunkBitmap bitmap = download.chunkBitmap;
+        if (bitmap != null && !bitmap.set(packet.getIndex())) return; // already had it, dont count it twice
 
-        target = FileUtil.getDownloadsDir().resolve(fileName);
-        log("Downloading file: " + fileName + " | " + FileUtil.getFileSize(fileSize));
+        chunkWritten(download, length);
+    }
 
-        try {
-            this.fileOutputStream = Files.newOutputStream(target);
-        } catch (IOException e) {
-            e.printStackTrace();
-            log("Error when creating file output stream: " + e.getMessage());
-        }
+    public void processDeltaOffer(DeltaOffer packet) {
+        Download download = downloads.get(packet.getTransferId());
+        if (download == null || download.state != Download.State.RECEIVING || download.request == null || !download.request.isDelta()) return;
+
+        download.offers.add(packet);
+        if (packet.isLast()) verifier.submitDeltaOffer(download);
     }
 
-    public void processData(FileData packet) {
-        if (receiveState != ReceiveState.RECEIVING) {
-            //log("DEBUG - Received FileData packet");
+    // on the verifier thread, before any chunk of the file arrives; whatever is in the chunk store is copied
+    // into the file and counted as received, the DeltaReply tells the peer to skip those
+    void applyDeltaOffer(Download download) throws IOException {
+        int count = 0;
+        for (DeltaOffer offer : download.offers) {
+            count += offer.getLengths().length;
+        }
+
+        long[] offsets = new long[count + 1];
+        byte[][] hashes = new byte[count][];
+        int index = 0;
+        for (DeltaOffer offer : download.offers) {
+            for (int i = 0; i < offer.getLengths().length; i++, index++) {
+                offsets[index + 1] = offsets[index] + offer.getLengths()[i];
+                hashes[index] = offer.getHashes()[i];
+            }
+        }
+        download.offers.clear();
+
+        if (offsets[count] != download.fileSize) {
+            verificationFailed(download, "delta chunks dont add up to the file size");
             return;
         }
 
-        int index = packet.getIndex();
+        BitSet have = new BitSet();
+        long haveBytes = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = ChunkStore.read(hashes[i]);
+            if (chunk == null || chunk.length != offsets[i + 1] - offsets[i]) continue;
 
-        if (index != expectedIndex) {
-            log("WARN - Expected chunk index " + expectedIndex + " but got " + index + "!");
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = offsets[i];
+            while (buffer.hasRemaining()) {
+                position += download.channel.write(buffer, position);
+            }
+            have.set(i);
+            haveBytes += chunk.length;
         }
 
-        int length = packet.getLength();
-        try {
-            fileOutputStream.write(packet.getData(), 0, length); // wrote chunk
-        } catch (IOException e) {
-            //e.printStackTrace();
-            //log("Error when writing chunk to disk: " + e.getMessage());
+        download.hashes = hashes;
+        download.offsets = offsets;
+        download.verified.or(have);
+        log("Delta download #" + download.id + ": " + have.cardinality() + "/" + count + " chunks (" + FileUtil.getFileSize(haveBytes) + ") already in the chunk store, " + FileUtil.getFileSize(download.fileSize - haveBytes) + " to receive");
+        peer.writePacket(new DeltaReply(download.id, have.toByteArray()));
+
+        if (haveBytes > 0) chunkWritten(download, haveBytes);
+    }
+
+    // on the verifier thread, the chunk is on disk and matched its checksum
+    void chunkVerified(Download download, int index, int units, long bytes) {
+        if (download.chunkBitmap != null) download.chunkBitmap.set(index, index + units);
+        chunkWritten(download, bytes);
+    }
+
+    // flow control; the peer only sends chunks it has credit for, and credit only comes back once chunks are on disk
+    // and checked, so a disk or verifier slower than the network holds the sender back instead of data piling up
+    // in the socket buffers and write queues on both sides
+    private final int CREDIT_WINDOW = 16 * 1024 * 1024; //16MB per transfer, enough to keep a fast link busy for a round trip
+    private final int CREDIT_BATCH = CREDIT_WINDOW / 4; // credit goes back in batches, not a packet per chunk
+
+    // on the verifier thread, for every chunk it took off the queue
+    void chunkPersisted(Download download, int length) {
+        FolderDownload folder = download.folder;
+        int id = folder != null ? folder.id : download.id;
+        int ungranted = (folder != null ? folder.ungranted : download.ungranted) + length;
+
+        if (ungranted >= CREDIT_BATCH) {
+            peer.writePacket(new FileCredit(id, ungranted));
+            ungranted = 0;
+        }
+
+        if (folder != null) {
+            folder.ungranted = ungranted;
+        } else {
+            download.ungranted = ungranted;
         }
+    }
 
-        // update
-        bytesReceived += length;
-        expectedIndex++;
+    void requestResend(Download download, int[] indexes) {
+        peer.writePacket(new FileResend(download.id, indexes));
+    }
 
-        // progress checking
-        double percent = ((double) bytesReceived /fileSize) * 100.0;
-        int wholePercent = (int) percent;
+    // checksums only pick out chunks damaged on the way; a whole-file mismatch left after that cant be narrowed down
+    void verificationFailed(Download download, String reason) {
+        log("Download #" + download.id + " failed verification: " + reason);
 
-        if (wholePercent % 10 == 0 && wholePercent != lastPercent) {
-            double elapsedSeconds = (System.currentTimeMillis() - receiveStartTime) / 1000.0;
-            double speed = bytesReceived / elapsedSeconds;
-            String fmtSpeed = FileUtil.getFileSize(speed);
+        if (download.folder != null) {
+            cancelFolderDownload(download.folder, false);
+        } else {
+            cancelDownload(download, false);
+        }
+    }
 
-            String received = FileUtil.getFileSize(bytesReceived);
-            String total = FileUtil.getFileSize(fileSize);
-            log("File download progress: " + received + "/" + total + " | " + wholePercent + "% | " + fmtSpeed + "/s | " + (long) elapsedSeconds + "s elapsed");
-            lastPercent = wholePercent;
+    private void chunkWritten(Download download, long length) {
+        synchronized (download) {
+            if (download.state != Download.State.RECEIVING) return; // cancelled while writing
+
+            // update
+            download.bytesReceived += length;
+
+            // progress checking
+            if (download.folder == null) {
+                download.lastPercent = logProgress("download", download.bytesReceived, download.fileSize, download.startTime, download.lastPercent);
+            }
+        }
+
+        FolderDownload folder = download.folder;
+        if (folder != null) {
+            synchronized (folder) {
+                folder.bytesReceived += length;
+                folder.lastPercent = logProgress("folder download", folder.bytesReceived, folder.totalSize, folder.startTime, folder.lastPercent);
+            }
         }
+
+        finishIfComplete(download);
     }
 
-    public void processFooter() {
-        if (receiveState != ReceiveState.RECEIVING) {
+    public void processFooter(FileFooter packet) {
+        Download download = downloads.get(packet.getTransferId());
+        if (download == null || download.state != Download.State.RECEIVING) {
             //log("DEBUG - Received FileFooter packet");
             return;
         }
 
+        synchronized (download) {
+            download.footerReceived = true;
+            download.expectedDigest = packet.getDigest();
+        }
+
+        if (download.isChecked()) {
+            verifier.submitFooter(download); // digest is worked out on the verifier thread
+        } else {
+            finishIfComplete(download);
+        }
+    }
+
+    // the footer comes on the main connection, data streams may still be delivering the last chunks
+    void finishIfComplete(Download download) {
+        synchronized (download) {
+            if (!download.isComplete() || download.state != Download.State.RECEIVING) return;
+            download.state = Download.State.DONE;
+        }
+
+        if (download.isChecked() && !MessageDigest.isEqual(download.digest.digest(), download.expectedDigest)) {
+            verificationFailed(download, "file digest doesnt match");
+            return;
+        }
+
+        if (download.folder != null) {
+            finishFolderFile(download);
+            return;
+        }
+
         try {
-            if (fileOutputStream != null) fileOutputStream.close();
-            long elapsedSeconds = (long) ((System.currentTimeMillis() - receiveStartTime) / 1000.0);
-            log(MainUtil.cmdIndent("File downloaded successfully: " + fileName + " | " + elapsedSeconds + "s elapsed\nSaved to: " + target));
+            download.channel.close();
+            if (download.chunkBitmap != null) download.chunkBitmap.delete();
+            long elapsedSeconds = (long) ((System.currentTimeMillis() - download.startTime) / 1000.0);
+            log(MainUtil.cmdIndent("File downloaded successfully: " + download.fileName + " | " + elapsedSeconds + "s elapsed" + (download.isChecked() ? " | verified" : "") + "\nSaved to: " + download.target));
+
+        } catch (IOException e) {
+            log("Error closing file: " + e.getMessage());
+        }
+
+        if (download.isChecked()) peer.writePacket(new FileComplete(download.id));
+        removeDownload(download);
+    }
+
+    private void removeDownload(Download download) {
+        download.state = Download.State.DONE;
+        downloads.remove(download.id, download);
+
+        if (download.requestTimeout != null) download.requestTimeout.cancel(false);
+        closeStreams(download.streams);
+        DataStreams.unregister(download.token);
+    }
+
+    // folder files are only opened once data arrives, so a folder of 100k files doesnt hold 100k open files
+    private FileChannel openFolderFile(Download download) {
+        synchronized (download) {
+            if (download.channel != null) return download.channel;
+            if (download.state != Download.State.RECEIVING) return null;
+
+            try {
+                Files.createDirectories(download.target.getParent());
+                download.channel = FileUtil.createTarget(download.target, download.fileSize);
+                return download.channel;
+            } catch (IOException e) {
+                log("Error when creating file output channel: " + e.getMessage());
+                cancelFolderDownload(download.folder, false);
+                return null;
+            }
+        }
+    }
 
-            resetReceiveStates();
+    private void finishFolderFile(Download download) {
+        FolderDownload folder = download.folder;
 
+        try {
+            if (download.channel != null) {
+                download.channel.close();
+            } else { // empty files never get a chunk
+                Files.createDirectories(download.target.getParent());
+                Files.write(download.target, new byte[0]);
+            }
+            Files.setLastModifiedTime(download.target, FileTime.fromMillis(download.lastModified));
         } catch (IOException e) {
             log("Error closing file: " + e.getMessage());
         }
+
+        removeDownload(download);
+
+        synchronized (folder) {
+            folder.filesReceived++;
+            if (!folder.isComplete() || folder.state != FolderDownload.State.RECEIVING) return;
+            folder.state = FolderDownload.State.DONE;
+        }
+
+        finishFolder(folder);
     }
 
-    private void resetReceiveStates() {
-        fileOutputStream = null;
-        fileName = null;
-        fileSize = 0;
-        bytesReceived = 0;
-        expectedIndex = 0;
-        lastPercent = -1;
-        target = null;
-        receiveStartTime = 0;
-        receiveState = ReceiveState.IDLE;
+    private void finishFolder(FolderDownload folder) {
+        long elapsedSeconds = (long) ((System.currentTimeMillis() - folder.startTime) / 1000.0);
+        log(MainUtil.cmdIndent("Folder downloaded successfully: " + folder.folderName + " | " + folder.fileCount + " files | " + elapsedSeconds + "s elapsed | verified\nSaved to: " + folder.root));
+        peer.writePacket(new FileComplete(folder.id));
+        removeFolderDownload(folder);
     }
 
-    private Thread requestTimeoutThread;
+    private void removeFolderDownload(FolderDownload folder) {
+        folder.state = FolderDownload.State.DONE;
+        folderDownloads.remove(folder.id, folder);
+        if (folder.requestTimeout != null) folder.requestTimeout.cancel(false);
+    }
+
+    private final int REQUEST_TIMEOUT_MILLIS = 30000;
 
     public synchronized void processRequest(FileRequest packet) {
-        if (receiveState == ReceiveState.RECEIVING) {
+        int id = packet.getTransferId();
+
+        if (downloads.containsKey(id) || folderDownloads.containsKey(id)) { // older peer sending a second file, or a reused id
             //log("Peer requested file transfer while already receiving a file; declining");
-            peer.writePacket(new FileResponse(false));
+            peer.writePacket(new FileResponse(id, false));
+            return;
+        }
+        if (!isValidChunking(packet.getChunkSize(), packet.getMaxChunkSize())) {
+            log("Peer requested file transfer #" + id + " with invalid chunk sizes; declining");
+            peer.writePacket(new FileResponse(id, false));
             return;
         }
 
-        receiveState = ReceiveState.PEER_REQUESTED;
-        log(MainUtil.cmdIndent("Peer requested file transfer: " + packet.getFileName() + " | " + FileUtil.getFileSize(packet.getFileSize()) + "\ncmd 'file accept/decline' for this request; will timeout in 30s...\ncmd 'file cancel download' to cancel mid-transfer"));
+        Download download = new Download(packet);
+        downloads.put(id, download);
+        log(MainUtil.cmdIndent("Peer requested file transfer #" + id + ": " + packet.getFileName() + " | " + FileUtil.getFileSize(packet.getFileSize()) + "\ncmd 'file accept/decline [id]' for this request; will timeout in 30s...\ncmd 'file cancel download [id]' to cancel mid-transfer"));
 
-        requestTimeoutThread = new Thread(() -> {
-            try {
-                Thread.sleep(30000);
-                declineRequest();
-            } catch (InterruptedException _) {}
-        });
+        download.requestTimeout = peer.schedule(() -> declineRequest(download), REQUEST_TIMEOUT_MILLIS);
+    }
+
+    public synchronized void processFolderRequest(FolderRequest packet) {
+        int id = packet.getTransferId();
+
+        if (downloads.containsKey(id) || folderDownloads.containsKey(id)) {
+            peer.writePacket(new FileResponse(id, false));
+            return;
+        }
+        if (!isValidChunking(packet.getChunkSize(), packet.getMaxChunkSize())) {
+            log("Peer requested folder transfer #" + id + " with invalid chunk sizes; declining");
+            peer.writePacket(new FileResponse(id, false));
+            return;
+        }
+
+        FolderDownload folder = new FolderDownload(packet);
+        folderDownloads.put(id, folder);
+        log(MainUtil.cmdIndent("Peer requested folder transfer #" + id + ": " + packet.getFolderName() + " | " + packet.getFileCount() + " files | " + FileUtil.getFileSize(packet.getTotalSize()) + "\ncmd 'file accept/decline [id]' for this request; will timeout in 30s...\ncmd 'file cancel download [id]' to cancel mid-transfer"));
+
+        folder.requestTimeout = peer.schedule(() -> declineFolder(folder), REQUEST_TIMEOUT_MILLIS);
+    }
+
+    // chunks are placed by index * chunkSize and sized in whole units up to the max, see Download
+    private static boolean isValidChunking(int chunkSize, int maxChunkSize) {
+        return chunkSize > 0 && maxChunkSize >= chunkSize && maxChunkSize <= ChunkSizer.MAX_CHUNK_SIZE && maxChunkSize % chunkSize == 0;
+    }
+
+    // each entry becomes a download that needs no accepting, the folder was accepted as a whole
+    public synchronized void processManifest(FolderManifest packet) {
+        FolderDownload folder = folderDownloads.get(packet.getTransferId());
+        if (folder == null || folder.state != FolderDownload.State.RECEIVING) return;
+
+        int index = packet.getFirstIndex();
+        if (index < 0 || index > folder.fileCount - packet.getEntries().size()) { // files past the count would never be counted as received
+            log("Invalid file range in folder manifest: " + index + " + " + packet.getEntries().size() + " of " + folder.fileCount);
+            cancelFolderDownload(folder, false);
+            return;
+        }
 
-        requestTimeoutThread.start();
+        for (FolderManifest.Entry entry : packet.getEntries()) {
+            Path target = folder.root.resolve(entry.path()).normalize();
+            if (!target.startsWith(folder.root) || target.equals(folder.root)) { // would write outside the folder
+                log("Invalid path in folder manifest: " + entry.path());
+                cancelFolderDownload(folder, false);
+                return;
+            }
+
+            int id = folder.id + 1 + index++;
+            if (downloads.putIfAbsent(id, new Download(id, folder, entry.path(), entry.size(), entry.lastModified(), target)) != null) { // another transfer's, or announced twice
+                log("Folder manifest reused transfer id #" + id);
+                cancelFolderDownload(folder, false);
+                return;
+            }
+        }
     }
 
     public synchronized void processResponse(FileResponse packet) {
+        FolderUpload folder = folderUploads.get(packet.getTransferId());
+        if (folder != null) {
+            processFolderResponse(folder, packet.getResponse());
+            return;
+        }
+
+        Upload upload = uploads.get(packet.getTransferId());
         boolean isAccepting = packet.getResponse();
-        boolean hasRequestedToSend = sendState == SendState.REQUESTED;
+        boolean hasRequestedToSend = upload != null && upload.state == Upload.State.REQUESTED;
 
         if (isAccepting && hasRequestedToSend) {
-            peer.log("Peer accepted file transfer request, transferring...");
-            writeFile();
+            peer.log("Peer accepted file transfer request #" + upload.id + ", transferring...");
+            upload.skip = BitSet.valueOf(packet.getReceived());
+            if (upload.isDelta) {
+                offerChunks(upload, Math.min(packet.getStreams(), uploadStreamCount), packet.getToken());
+            } else {
+                writeFile(upload, Math.min(packet.getStreams(), uploadStreamCount), packet.getToken());
+            }
         } else if (!isAccepting && hasRequestedToSend) {
-            peer.log("Peer declined file transfer request");
-            sendState = SendState.IDLE;
+            peer.log("Peer declined file transfer request #" + upload.id);
+            removeUpload(upload);
         } else {
             // peer sent a DataResponse packet when self did not request to send file; ignore this
         }
     }
 
-    public synchronized void acceptRequest() {
-        if (receiveState == ReceiveState.PEER_REQUESTED) {
-            log("Accepted file transfer request; downloading...");
+    // no id accepts/declines every pending request
+    public synchronized void acceptRequest(Integer id) {
+        List<Download> pending = pendingDownloads(id);
+        List<FolderDownload> pendingFolders = pendingFolders(id);
+        if (pending.isEmpty() && pendingFolders.isEmpty()) {
+            log("No file transfer request was sent" + (id != null ? " with id " + id : ""));
+            return;
+        }
+
+        for (Download download : pending) {
+            acceptRequest(download);
+        }
+        for (FolderDownload folder : pendingFolders) {
+            acceptFolder(folder);
+        }
+    }
+
+    private void acceptFolder(FolderDownload folder) {
+        log("Accepted folder transfer request #" + folder.id + "; downloading...");
+        folder.requestTimeout.cancel(false);
+
+        Path downloadsDir = FileUtil.getDownloadsDir();
+        folder.root = downloadsDir.resolve(folder.folderName).normalize();
+
+        try {
+            if (!folder.root.startsWith(downloadsDir) || folder.root.equals(downloadsDir)) throw new IOException("Invalid folder name: " + folder.folderName);
+            Files.createDirectories(folder.root);
+            FileUtil.checkFreeSpace(folder.root, folder.totalSize);
+        } catch (IOException e) {
+            log("Error when creating folder: " + e.getMessage());
+            peer.writePacket(new FileResponse(folder.id, false));
+            removeFolderDownload(folder);
+            return;
+        }
+
+        folder.startTime = System.currentTimeMillis();
+        folder.state = FolderDownload.State.RECEIVING;
+        peer.writePacket(new FileResponse(folder.id, true, 0, 0, new byte[0]));
+        peer.writePacket(new FileCredit(folder.id, CREDIT_WINDOW));
+
+        if (folder.isComplete()) finishFolder(folder); // empty folder
+    }
+
+    private void acceptRequest(Download download) {
+        log("Accepted file transfer request #" + download.id + "; downloading...");
+        download.requestTimeout.cancel(false);
+
+        try {
+            prepareDownload(download);
+        } catch (IOException e) {
+            log("Error when creating file output channel: " + e.getMessage());
+            peer.writePacket(new FileResponse(download.id, false));
+            removeDownload(download);
+            return;
+        }
+
+        download.state = Download.State.RECEIVING;
+
+        FileRequest request = download.request;
+        if (!request.isExtended()) { // older peer, single stream
             peer.writePacket(new FileResponse(true));
-            requestTimeoutThread.interrupt();
-            receiveState = ReceiveState.RECEIVING;
-        } else {
-            log("No file transfer request was sent");
+            return;
         }
+
+        // whichever side has the open port hands out the token, the other opens the extra connections
+        int streams = Math.min(request.getStreams(), MAX_STREAMS);
+        long token = 0;
+
+        if (streams > 0 && peer.isOutbound()) {
+            streams = openDataStreams(streams, request.getToken(), download.streams);
+        } else if (streams > 0) {
+            token = DataStreams.register(peer);
+            download.token = token;
+        }
+
+        byte[] received = download.chunkBitmap != null && download.chunkBitmap.isResumed() ? download.chunkBitmap.toByteArray() : new byte[0];
+        peer.writePacket(new FileResponse(download.id, true, streams, token, received));
+        peer.writePacket(new FileCredit(download.id, CREDIT_WINDOW));
     }
 
-    public synchronized void declineRequest() {
-        if (receiveState == ReceiveState.PEER_REQUESTED) {
-            log("Declined file transfer request");
-            peer.writePacket(new FileResponse(false));
-            requestTimeoutThread.interrupt();
-            receiveState = ReceiveState.IDLE;
-        } else {
-            log("No file transfer request was sent");
+    public synchronized void declineRequest(Integer id) {
+        List<Download> pending = pendingDownloads(id);
+        List<FolderDownload> pendingFolders = pendingFolders(id);
+        if (pending.isEmpty() && pendingFolders.isEmpty()) {
+            log("No file transfer request was sent" + (id != null ? " with id " + id : ""));
+            return;
+        }
+
+        for (Download download : pending) {
+            declineRequest(download);
+        }
+        for (FolderDownload folder : pendingFolders) {
+            declineFolder(folder);
+        }
+    }
+
+    private synchronized void declineFolder(FolderDownload folder) {
+        if (folder.state != FolderDownload.State.PEER_REQUESTED) return; // accepted just before it timed out
+
+        log("Declined folder transfer request #" + folder.id);
+        peer.writePacket(new FileResponse(folder.id, false));
+        removeFolderDownload(folder);
+    }
+
+    private synchronized void declineRequest(Download download) {
+        if (download.state != Download.State.PEER_REQUESTED) return; // accepted just before it timed out
+
+        log("Declined file transfer request #" + download.id);
+        peer.writePacket(new FileResponse(download.id, false));
+        removeDownload(download);
+    }
+
+    private List<FolderDownload> pendingFolders(Integer id) {
+        List<FolderDownload> pending = new ArrayList<>();
+        for (FolderDownload folder : folderDownloads.values()) {
+            if (folder.state == FolderDownload.State.PEER_REQUESTED && (id == null || folder.id == id)) pending.add(folder);
+        }
+        return pending;
+    }
+
+    private List<Download> pendingDownloads(Integer id) {
+        List<Download> pending = new ArrayList<>();
+        for (Download download : downloads.values()) {
+            if (download.state == Download.State.PEER_REQUESTED && (id == null || download.id == id)) pending.add(download);
+        }
+        return pending;
+    }
+
+    // sending files
+
+    private final int CHUNK_SIZE = 65536; //64KB, older peers only; the rest get chunks sized by ChunkSizer
+
+    // multi-stream; extra connections an upload is striped over, chunk i goes on stream i % streams
+    // a single tcp connection cant fill a long fat link, several share the loss recovery and window growth
+    private final int MAX_STREAMS = 8;
+
+    // delta mode; set by cmd 'file delta [on/off]'
+    private boolean isDeltaMode = false;
+    private final int OFFER_BATCH_SIZE = 4096; // chunks per DeltaOffer
+    private final int STREAM_JOIN_TIMEOUT_MILLIS = 2000;
+    private int uploadStreamCount = 0; // set by cmd 'file streams [n]'
+
+    // memory-mapped reading; set by cmd 'file mmap [on/off]', big uploads are hashed straight from a mapping of
+    // the file, see MappedFile. off by default, a file truncated while its mapped faults instead of ending early
+    private boolean isMappedMode = false;
+    private final long MAPPED_MIN_SIZE = 256 * 1024 * 1024; //256MB, smaller files are read quicker than theyre mapped
+
+    public void setStreams(int streams) {
+        if (streams < 0 || streams > MAX_STREAMS) {
+            log("Number of extra streams must be 0-" + MAX_STREAMS);
+            return;
         }
+
+        uploadStreamCount = streams;
+        log("File uploads will use " + (streams + 1) + " connection(s)");
+    }
+
+    public void setDeltaMode(boolean isDelta) {
+        isDeltaMode = isDelta;
+        log("Delta mode " + (isDelta ? "on; uploads only send the chunks the peer doesnt already have" : "off"));
     }
 
-    private Path selectedFile;
-    private InputStream fileInputStream;
+    public void setMappedMode(boolean isMapped) {
+        isMappedMode = isMapped;
+        log("Memory-mapped reading " + (isMapped ? "on for uploads of " + FileUtil.getFileSize(MAPPED_MIN_SIZE) + " or more" : "off"));
+    }
 
-    public synchronized void selectFile() { // send transfer request
-        if (sendState != SendState.IDLE) {
-            log("Unable to select file when uploading file/have sent file transfer request to peer");
+    // upload rate limits; set by cmd 'limit [KB/s/off]' for every peer, per peer and 'file limit [id] [KB/s/off]' per transfer
+    // the global one is shared by every peer's sender thread and hands out the link in the order they ask, so
+    // limited peers take turns; a peer's own limit holds back all its uploads, a transfer's only that one
+    private static final TokenBucket globalLimit = new TokenBucket();
+    private final TokenBucket peerLimit = new TokenBucket();
+
+    public static void setGlobalLimit(long bytesPerSecond) {
+        globalLimit.setRate(bytesPerSecond);
+    }
+
+    public void setPeerLimit(long bytesPerSecond) {
+        peerLimit.setRate(bytesPerSecond);
+        log(bytesPerSecond > 0 ? "Uploads to this peer limited to " + FileUtil.getFileSize(bytesPerSecond) + "/s" : "Uploads to this peer no longer limited");
+    }
+
+    public synchronized void setTransferLimit(int id, long bytesPerSecond) {
+        Upload upload = uploads.get(id);
+        FolderUpload folder = upload == null ? folderUploads.get(id) : null;
+        if (upload == null && folder == null) {
+            log("No upload with id " + id);
             return;
         }
 
-        selectedFile = Main.window().chooseFile();
-        if (selectedFile == null) {
+        (upload != null ? upload.limit : folder.limit).setRate(bytesPerSecond);
+        log(bytesPerSecond > 0 ? "Upload #" + id + " limited to " + FileUtil.getFileSize(bytesPerSecond) + "/s" : "Upload #" + id + " no longer limited");
+    }
+
+    public void selectFile() { // send transfer requests, one per chosen file
+        List<Path> files = Main.frontend().chooseFiles();
+        if (files.isEmpty()) {
             log("File upload cancelled");
             return;
         }
 
+        for (Path file : files) {
+            requestUpload(file);
+        }
+    }
+
+    private synchronized void requestUpload(Path file) {
+        boolean isOlderPeer = !peer.hasBinaryIds();
+        if (isOlderPeer && !uploads.isEmpty()) {
+            log("Unable to send " + file.getFileName() + "; peer only supports one file transfer at a time");
+            return;
+        }
+
         try {
-            log(MainUtil.cmdIndent("Sending file transfer request to peer: " + selectedFile.getFileName() + " | " + FileUtil.getFileSize(Files.size(selectedFile)) + "\ncmd 'file cancel upload' to cancel transfer"));
-            peer.writePacket(new FileRequest(selectedFile));
-            sendState = SendState.REQUESTED;
+            int id = isOlderPeer ? 0 : nextTransferId.getAndIncrement();
+            Upload upload = new Upload(id, file, Files.size(file), isOlderPeer ? CHUNK_SIZE : ChunkSizer.UNIT);
+
+            log(MainUtil.cmdIndent("Sending file transfer request #" + id + " to peer: " + file.getFileName() + " | " + FileUtil.getFileSize(upload.fileSize) + "\ncmd 'file cancel upload [id]' to cancel transfer"));
+            if (!isOlderPeer) {
+                // token only if this side has the open port, otherwise the peer hands one out in its FileResponse
+                upload.token = uploadStreamCount > 0 && !peer.isOutbound() ? DataStreams.register(peer) : 0;
+                upload.isDelta = isDeltaMode;
+                peer.writePacket(new FileRequest(id, file, uploadStreamCount, ChunkSizer.UNIT, ChunkSizer.MAX_CHUNK_SIZE, upload.token, upload.isDelta));
+            } else {
+                peer.writePacket(new FileRequest(file));
+            }
+            uploads.put(id, upload);
         } catch (IOException e) {
             log("Error when requesting file transfer: " + e.getMessage());
         }
     }
 
-    private void writeFile() {
-        if (sendState == SendState.SENDING) {
-            log("Unable to upload file whilst uploading another one");
+    // folders are walked up front so the request can show the totals; the manifest itself is sent in batches as the files go
+    public void selectFolder() {
+        Path root = Main.frontend().chooseFolder();
+        if (root == null) {
+            log("Folder upload cancelled");
             return;
         }
-        if (selectedFile == null) {
-            log("WARN - selectedFile was null when writeFile(); was called");
+
+        uploadFolder(root);
+    }
+
+    // cmd 'file upload [path]', no file chooser; the only way to send a file when headless
+    public void uploadFile(Path file) {
+        if (!Files.isRegularFile(file)) {
+            log("Not a file: " + file);
             return;
         }
 
-        sendState = SendState.SENDING;
-        long sendStartTime = System.currentTimeMillis();
+        requestUpload(file);
+    }
 
-        new Thread(() -> { // new thread so swing doesnt freeze
-            try {
-                peer.writePacket(new FileHeader(selectedFile));
+    public void uploadFolder(Path root) {
+        if (!Files.isDirectory(root)) {
+            log("Not a folder: " + root);
+            return;
+        }
+
+        if (!peer.hasBinaryIds()) {
+            log("Unable to send folder; peer doesnt support folder transfers");
+            return;
+        }
+
+        List<FolderManifest.Entry> entries = new ArrayList<>();
+        long totalSize = 0;
+
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) continue;
+
+                String relativePath = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                entries.add(new FolderManifest.Entry(relativePath, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                totalSize += attributes.size();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log("Error when reading folder: " + e.getMessage());
+            return;
+        }
+
+        requestFolderUpload(root, entries, totalSize);
+    }
+
+    private synchronized void requestFolderUpload(Path root, List<FolderManifest.Entry> entries, long totalSize) {
+        int id = nextTransferId.getAndAdd(entries.size() + 1); // folder, then one id per file
+        FolderUpload folder = new FolderUpload(id, root, entries, totalSize);
+        folderUploads.put(id, folder);
+
+        log(MainUtil.cmdIndent("Sending folder transfer request #" + id + " to peer: " + root.getFileName() + " | " + entries.size() + " files | " + FileUtil.getFileSize(totalSize) + "\ncmd 'file cancel upload [id]' to cancel transfer"));
+        peer.writePacket(new FolderRequest(id, root.getFileName().toString(), entries.size(), totalSize, ChunkSizer.UNIT, ChunkSizer.MAX_CHUNK_SIZE));
+    }
+
+    private void processFolderResponse(FolderUpload folder, boolean isAccepting) {
+        if (folder.state != FolderUpload.State.REQUESTED) return;
+
+        if (!isAccepting) {
+            peer.log("Peer declined folder transfer request #" + folder.id);
+            removeFolderUpload(folder);
+            return;
+        }
+
+        peer.log("Peer accepted folder transfer request #" + folder.id + ", transferring...");
+        folder.startTime = System.currentTimeMillis();
+        folder.state = FolderUpload.State.SENDING;
+        nextFolderFile(folder);
+    }
+
+    // files go back to back with no handshake; each is announced in a FolderManifest batch just before its chunks
+    private void nextFolderFile(FolderUpload folder) {
+        if (folder.state != FolderUpload.State.SENDING) return;
+
+        if (folder.nextEntry == folder.entries.size()) {
+            folder.state = FolderUpload.State.VERIFYING; // files are kept around for resends until the peer sends FileComplete
+            return;
+        }
 
-                long bytesSent = 0;
-                long fileSize = Files.size(selectedFile);
-                int lastPercent = -1;
+        if (folder.nextEntry == folder.announced) {
+            int end = Math.min(folder.announced + FolderManifest.MAX_ENTRIES, folder.entries.size());
+            peer.writePacket(new FolderManifest(folder.id, folder.announced, new ArrayList<>(folder.entries.subList(folder.announced, end))));
+            folder.announced = end;
+        }
+
+        FolderManifest.Entry entry = folder.entries.get(folder.nextEntry);
+        Upload upload = new Upload(folder.id + 1 + folder.nextEntry, folder.root.resolve(entry.path()), entry.size(), ChunkSizer.UNIT, folder);
+        folder.nextEntry++;
+        folder.sampler.nextFile();
+        folder.current = upload;
+
+        upload.state = Upload.State.CONNECTING;
+        startSending(upload);
+    }
+
+    // peer has every file and checked it
+    public synchronized void processComplete(FileComplete packet) {
+        int id = packet.getTransferId();
+
+        FolderUpload folder = folderUploads.get(id);
+        if (folder != null && folder.state == FolderUpload.State.VERIFYING) {
+            log(MainUtil.cmdIndent("Folder uploaded successfully: " + folder.root.getFileName() + " | " + folder.entries.size() + " files | verified by peer\nFrom: " + folder.root));
+            removeFolderUpload(folder);
+            return;
+        }
 
-                fileInputStream = Files.newInputStream(selectedFile);
+        Upload upload = uploads.get(id);
+        if (upload != null && upload.state == Upload.State.VERIFYING) {
+            String saved = upload.bytesSaved > 0 ? " | " + FileUtil.getFileSize(upload.bytesSaved) + " saved by compression" : "";
+            log(MainUtil.cmdIndent("File uploaded successfully: " + upload.file.getFileName() + " | verified by peer" + saved + "\nFrom: " + upload.file));
+            removeUpload(upload);
+        }
+    }
 
-                byte[] buffer = new byte[65536]; //64KB
-                int index = 0;
-                int read;
+    // chunks the peer got damaged; read again and sent on the main connection, on a thread of their own
+    // so the sender thread carries on with the other uploads
+    public synchronized void processResend(FileResend packet) {
+        int id = packet.getTransferId();
+        sizer.resendRequested();
 
-                // read then send chunks of bytes from the file
-                while ((read = fileInputStream.read(buffer)) != -1) { // while file hasnt ended
-                    byte[] chunk = Arrays.copyOf(buffer, read);
-                    peer.writePacket(new FileData(index, chunk));
-                    index++;
+        Upload upload = uploads.get(id);
+        if (upload != null && (upload.state == Upload.State.SENDING || upload.state == Upload.State.VERIFYING)) {
+            resendChunks(upload, packet.getIndexes());
+            return;
+        }
 
-                    // progress tracking
-                    bytesSent += read;
+        for (FolderUpload folder : folderUploads.values()) {
+            boolean isFolderFile = id > folder.id && id <= folder.id + folder.entries.size();
+            if (!isFolderFile || (folder.state != FolderUpload.State.SENDING && folder.state != FolderUpload.State.VERIFYING)) continue;
 
-                    double percent = ((double) bytesSent /fileSize) * 100.0;
-                    int wholePercent = (int) percent;
+            FolderManifest.Entry entry = folder.entries.get(id - folder.id - 1);
+            resendChunks(new Upload(id, folder.root.resolve(entry.path()), entry.size(), ChunkSizer.UNIT, folder), packet.getIndexes());
+            return;
+        }
+    }
 
-                    if (wholePercent % 10 == 0 && wholePercent != lastPercent) {
-                        double elapsedSeconds = (System.currentTimeMillis() - sendStartTime) / 1000.0;
-                        double speed = bytesSent / elapsedSeconds;
-                        String fmtSpeed = FileUtil.getFileSize(speed);
+    private void resendChunks(Upload upload, int[] indexes) {
+        ThreadUtil.start("file-resend-" + peer.ip(), () -> {
+            try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.READ)) {
+                for (int index : indexes) {
+                    if (index < 0 || index >= upload.chunkCount()) continue;
 
-                        String received = FileUtil.getFileSize(bytesSent);
-                        String total = FileUtil.getFileSize(fileSize);
-                        log("File upload progress: " + received + "/" + total + " | " + wholePercent + "% | " + fmtSpeed + "/s | " + (long) elapsedSeconds + "s elapsed");
-                        lastPercent = wholePercent;
+                    long position = upload.offsetOf(index);
+                    ByteBuffer chunk = ByteBuffer.allocate(upload.lengthOf(index));
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, position + chunk.position()) < 0) throw new EOFException("File ended before chunk " + index);
                     }
+                    peer.writePacket(new FileData(upload.id, index, chunk.array())); // checksum is worked out again from what was read
                 }
+            } catch (IOException e) {
+                log("Error when resending file chunks: " + e.getMessage());
+            }
+        });
+    }
 
-                peer.writePacket(new FileFooter());
+    private void removeFolderUpload(FolderUpload folder) {
+        folder.state = FolderUpload.State.DONE;
+        folderUploads.remove(folder.id, folder);
 
-                log(MainUtil.cmdIndent("File uploaded successfully: " + selectedFile.getFileName() + "\nFrom: " + selectedFile));
-                selectedFile = null;
-                sendState = SendState.IDLE;
+        Upload current = folder.current;
+        if (current != null) current.state = Upload.State.DONE; // sender thread closes it
+    }
 
+    // delta mode; the file is cut and hashed on a thread of its own, then offered in batches
+    // streams are only connected once the peer has said which chunks it still needs
+    private void offerChunks(Upload upload, int streamCount, long token) {
+        upload.state = Upload.State.OFFERING;
+        upload.acceptedStreams = streamCount;
+        upload.acceptedToken = token;
+
+        ThreadUtil.start("file-delta-" + peer.ip(), () -> {
+            ContentChunker.Chunks chunks;
+            try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.READ)) {
+                chunks = ContentChunker.split(channel);
             } catch (IOException e) {
-                //log("Error when writing file: " + e.getMessage());
-            } finally {
-                try {
-                    if (fileInputStream != null) {
-                        fileInputStream.close();
-                    }
-                } catch (IOException ex) {
-                    log("Error when closing fileInputStream: " + ex.getMessage());
+                log("Error when reading file: " + e.getMessage());
+                cancelUpload(upload, false);
+                return;
+            }
+
+            long[] offsets = chunks.offsets();
+            int count = chunks.hashes().length;
+            if (offsets[count] != upload.fileSize) {
+                log("Unable to send " + upload.file.getFileName() + "; file changed since it was requested");
+                cancelUpload(upload, false);
+                return;
+            }
+            upload.offsets = offsets;
+
+            int first = 0;
+            do { // an empty file still gets its last batch
+                if (upload.state != Upload.State.OFFERING) return; // cancelled
+
+                int end = Math.min(first + OFFER_BATCH_SIZE, count);
+                int[] lengths = new int[end - first];
+                for (int i = first; i < end; i++) {
+                    lengths[i - first] = upload.lengthOf(i);
+                }
+
+                peer.writePacket(new DeltaOffer(upload.id, end == count, lengths, Arrays.copyOfRange(chunks.hashes(), first, end)));
+                first = end;
+            } while (first < count);
+        });
+    }
+
+    public synchronized void processDeltaReply(DeltaReply packet) {
+        Upload upload = uploads.get(packet.getTransferId());
+        if (upload == null || upload.state != Upload.State.OFFERING) return;
+
+        upload.skip = BitSet.valueOf(packet.getHave());
+        int needed = upload.chunkCount() - upload.skip.cardinality();
+        log("Peer already has " + upload.skip.cardinality() + "/" + upload.chunkCount() + " chunks of file #" + upload.id + "; sending the other " + needed);
+
+        writeFile(upload, upload.acceptedStreams, upload.acceptedToken);
+    }
+
+    private void writeFile(Upload upload, int streamCount, long token) {
+        upload.state = Upload.State.CONNECTING;
+
+        if (streamCount == 0) {
+            startSending(upload);
+            return;
+        }
+
+        ThreadUtil.start("file-streams-" + peer.ip(), () -> { // opening/waiting for connections would hold up the other uploads
+            connectUploadStreams(upload, streamCount, token);
+            startSending(upload);
+        });
+    }
+
+    private final List<Upload> sending = new CopyOnWriteArrayList<>();
+    private boolean isSenderRunning;
+    private int chunksQueued; // only used by the sender thread
+    private long nextSendNanos; // only used by the sender thread; soonest a transfer held back by its limit can send again
+    private int credits; // FileCredits so far, so the sender thread cant miss one that arrives just before it waits
+    private final int CREDIT_WAIT_MILLIS = 250; // cancelled uploads are noticed after this at most
+
+    // channel stays open until queued chunks are written, several finished uploads are closed together
+    private final int MAX_FINISHED_UPLOADS = 64;
+
+    private void startSending(Upload upload) {
+        if (upload.state != Upload.State.CONNECTING) { // cancelled while connecting
+            closeStreams(upload.streams);
+            return;
+        }
+
+        try {
+            upload.channel = FileChannel.open(upload.file, StandardOpenOption.READ);
+            if (isMappedMode && upload.digest != null && upload.fileSize >= MAPPED_MIN_SIZE) upload.mapped = new MappedFile(upload.channel, upload.fileSize);
+            upload.connections = new ArrayList<>();
+            upload.connections.add(peer);
+            upload.connections.addAll(upload.streams);
+
+            if (upload.folder == null) peer.writePacket(new FileHeader(upload.id, upload.file, upload.chunkSize)); // folder files are in the manifest
+        } catch (IOException e) {
+            log("Error when opening file: " + e.getMessage());
+            if (upload.folder != null) {
+                cancelFolderUpload(upload.folder, false);
+            } else {
+                cancelUpload(upload, false);
+            }
+            return;
+        }
+
+        upload.startTime = System.currentTimeMillis();
+        upload.state = Upload.State.SENDING;
+
+        synchronized (this) {
+            sending.add(upload);
+            if (isSenderRunning) return;
+            isSenderRunning = true;
+        }
+
+        ThreadUtil.start("file-upload-" + peer.ip(), this::sendChunks); // new thread so swing doesnt freeze
+    }
+
+    // one chunk from each upload in turn, so small files arent stuck behind a big one
+    // the connections' write queues are bounded, so this blocks while the peer catches up
+    private void sendChunks() {
+        List<Upload> finished = new ArrayList<>();
+
+        while (true) {
+            synchronized (this) {
+                if (sending.isEmpty()) {
+                    sizer.idle(); // before the next sender thread can start using it
+                    isSenderRunning = false;
+                    break;
                 }
-                fileInputStream = null;
             }
-        }).start();
+
+            int creditsBefore;
+            synchronized (this) {
+                creditsBefore = credits;
+            }
+
+            int queuedBefore = chunksQueued;
+            nextSendNanos = Long.MAX_VALUE;
+            boolean isRemoved = false;
+            for (Upload upload : sending) {
+                if (!sendNextChunk(upload)) {
+                    sending.remove(upload);
+                    finished.add(upload);
+                    isRemoved = true;
+                }
+            }
+
+            if (chunksQueued == queuedBefore && !isRemoved) awaitSendable(creditsBefore); // every upload is out of credit or held back
+
+            if (finished.size() >= MAX_FINISHED_UPLOADS) closeFinished(finished);
+        }
+
+        closeFinished(finished);
+    }
+
+    private synchronized void awaitSendable(int creditsBefore) {
+        if (credits != creditsBefore) return;
+
+        try {
+            wait(Math.max(1, Math.min(CREDIT_WAIT_MILLIS, nextSendNanos / 1_000_000)));
+        } catch (InterruptedException _) {}
+    }
+
+    public synchronized void processCredit(FileCredit packet) {
+        Upload upload = uploads.get(packet.getTransferId());
+        FolderUpload folder = upload == null ? folderUploads.get(packet.getTransferId()) : null;
+        if (upload == null && folder == null) return;
+
+        (upload != null ? upload.credit : folder.credit).addAndGet(packet.getBytes());
+        credits++;
+        notifyAll();
+    }
+
+    // false once the upload is done or was cancelled
+    private boolean sendNextChunk(Upload upload) {
+        try {
+            // skip chunks the peer already has, they still go through the digest
+            while (upload.bytesSent < upload.fileSize && upload.skip.get(upload.nextIndex)) {
+                int skipped = upload.lengthOf(upload.nextIndex);
+                if (upload.digest != null) hashChunk(upload, upload.bytesSent, skipped);
+                upload.bytesSent += skipped;
+                upload.nextIndex++;
+            }
+
+            if (upload.state != Upload.State.SENDING) return false; // upload was cancelled
+
+            if (upload.bytesSent >= upload.fileSize) { // file has ended
+                finishSending(upload);
+                return false;
+            }
+
+            return sendChunk(upload);
+        } catch (IOException | InternalError e) { // InternalError is a mapped file that got shorter, see MappedFile
+            if (upload.state != Upload.State.SENDING) return false; // cancelled, channel was closed under it
+
+            log("Error when reading file: " + e.getMessage());
+            if (upload.folder != null) {
+                cancelFolderUpload(upload.folder, false);
+            } else {
+                cancelUpload(upload, false);
+            }
+            return false;
+        }
     }
 
-    public void cancelUpload(boolean fromPeer) {
-        if (sendState == SendState.IDLE) { // allow requested
-            log("Unable to cancel upload as you are not currently uploading a file");
+    private void finishSending(Upload upload) {
+        // footer can go before the data streams have sent their last chunks, the peer waits for both
+        peer.writePacket(new FileFooter(upload.id, upload.digest != null ? upload.digest.digest() : new byte[0]));
+
+        if (upload.folder != null) {
+            upload.state = Upload.State.DONE; // folder is checked as a whole, see processResend
+            upload.folder.bytesSent += upload.fileSize;
+            nextFolderFile(upload.folder);
             return;
         }
 
-        if (!fromPeer) { // will result in an endless loop of packet sending without this flag
-            peer.writePacket(new FileCancelUpload());
+        if (upload.digest != null) {
+            upload.state = Upload.State.VERIFYING; // logged once the peer sends FileComplete
+            return;
+        }
+
+        log(MainUtil.cmdIndent("File uploaded successfully: " + upload.file.getFileName() + "\nFrom: " + upload.file));
+        removeUpload(upload);
+    }
+
+    private boolean sendChunk(Upload upload) throws IOException {
+        int units = chunkUnits(upload);
+        int read = chunkLength(upload, units);
+        long credit = upload.credit.get();
+        if (read > credit) { // only as much as the peer has room for, the rest waits for its next FileCredit
+            units = upload.offsets == null ? (int) Math.min(units, credit / upload.chunkSize) : 0;
+            if (units == 0) return true;
+            read = chunkLength(upload, units);
+        }
+
+        long delay = upload.limit.delayNanos(); // only holds this upload back, the peer's others carry on
+        if (delay > 0) {
+            nextSendNanos = Math.min(nextSendNanos, delay);
+            return true;
+        }
+
+        upload.credit.addAndGet(-read);
+        upload.limit.reserve(read);
+        awaitLimits(read);
+        chunksQueued++;
+
+        Peer stream = upload.connections.get(upload.chunksSent++ % upload.connections.size());
+        if (stream.isClosed()) {
+            log("File data stream closed unexpectedly");
+            cancelUpload(upload, false);
+            return false;
+        }
+
+        // send chunks as regions of the file; peer transfers them to the socket without copying
+        int checksum = upload.digest != null ? hashChunk(upload, upload.bytesSent, read) : 0;
+        FileData chunk = new FileData(upload.id, upload.nextIndex, upload.channel, upload.bytesSent, read, checksum);
+        Packet compressed = compressChunk(upload, stream, chunk);
+        stream.writePacket(compressed != null ? compressed : chunk);
+        upload.nextIndex += units;
+        sizer.chunkSent(read);
+
+        // progress tracking
+        upload.bytesSent += read;
+
+        FolderUpload folder = upload.folder;
+        if (folder != null) {
+            folder.lastPercent = logProgress("folder upload", folder.bytesSent + upload.bytesSent, folder.totalSize, folder.startTime, folder.lastPercent);
         } else {
-            log("Peer cancelled download");
+            upload.lastPercent = logProgress("upload", upload.bytesSent, upload.fileSize, upload.startTime, upload.lastPercent);
         }
+        return true;
+    }
 
-        log("Cancelling upload...");
+    public boolean pingReturned(Ping packet) {
+        return sizer.pingReturned(packet);
+    }
+
+    // the peer's and the global limit hold back every upload on this thread, so it just waits its turn
+    private void awaitLimits(int length) {
+        long delay = Math.max(peerLimit.reserve(length), globalLimit.reserve(length));
+        if (delay <= 0) return;
 
         try {
-            if (fileInputStream != null) {
-                fileInputStream.close();
+            Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+        } catch (InterruptedException _) {}
+    }
+
+    // lowest limit that applies to the upload, 0 if none
+    private long limitOf(Upload upload) {
+        long limit = 0;
+        for (long rate : new long[] {upload.limit.getRate(), peerLimit.getRate(), globalLimit.getRate()}) {
+            if (rate > 0 && (limit == 0 || rate < limit)) limit = rate;
+        }
+        return limit;
+    }
+
+    // units of upload.chunkSize going in the next chunk; older peers and delta uploads get one at a time,
+    // the rest as many as ChunkSizer wants, stopping short of any the peer already has
+    private int chunkUnits(Upload upload) {
+        if (upload.id == 0 || upload.offsets != null) return 1;
+
+        int size = sizer.nextChunkSize();
+        long limit = limitOf(upload);
+        if (limit > 0) size = (int) Math.min(size, Math.max(ChunkSizer.UNIT, limit / 10)); // ~100ms of the limit at most, so a cancel isnt stuck behind a long wait
+
+        int end = Math.min(upload.nextIndex + size / upload.chunkSize, upload.chunkCount());
+        int had = upload.skip.nextSetBit(upload.nextIndex);
+        if (had >= 0) end = Math.min(end, had);
+        return end - upload.nextIndex;
+    }
+
+    private int chunkLength(Upload upload, int units) {
+        return units == 1 ? upload.lengthOf(upload.nextIndex) : (int) Math.min((long) units * upload.chunkSize, upload.fileSize - upload.bytesSent);
+    }
+
+    // only used by the sender thread
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer hashBuffer;
+    private ByteBuffer hashedChunk; // the last chunk hashed, in hashBuffer or a slice of the upload's mapping
+    private byte[] compressBuffer; // what a chunk compresses to before its known to be worth sending
+
+    // the chunk is hashed here while the writer threads are still sending the chunks queued before it,
+    // reading it back is from the page cache and the socket still gets it with transferTo
+    private int hashChunk(Upload upload, long position, int length) throws IOException {
+        if (upload.mapped != null) {
+            hashedChunk = upload.mapped.slice(position, length); // no read() copy, the pages are hashed where they are
+        } else {
+            if (hashBuffer == null || hashBuffer.capacity() < length) hashBuffer = ByteBuffer.allocateDirect(length);
+
+            hashBuffer.clear().limit(length);
+            while (hashBuffer.hasRemaining()) {
+                if (upload.channel.read(hashBuffer, position + hashBuffer.position()) < 0) throw new EOFException("File ended before it was sent: " + upload.file.getFileName());
+            }
+            hashedChunk = hashBuffer.flip();
+        }
+
+        crc.reset();
+        crc.update(hashedChunk);
+        upload.digest.update(hashedChunk.rewind());
+        return (int) crc.getValue();
+    }
+
+    // hashedChunk still has the chunk from hashChunk(), its compressed from there; a compressed chunk cant go with
+    // transferTo, so its only sent compressed if it shrank, otherwise the file region goes as usual
+    private Packet compressChunk(Upload upload, Peer stream, FileData chunk) throws IOException {
+        Codec codec = stream.codec();
+        if (codec == null || upload.digest == null || !upload.sampler.shouldTry()) return null;
+
+        if (compressBuffer == null || compressBuffer.length < chunk.getLength()) compressBuffer = new byte[chunk.getLength()];
+        Compressed compressed = Compressed.compress(codec, chunk, hashedChunk.rewind(), compressBuffer);
+        upload.sampler.record(compressed != null);
+        if (compressed != null) upload.bytesSaved += compressed.getOriginalLength() - compressed.getCompressedLength();
+        return compressed;
+    }
+
+    // queued chunks are still read from the channels by the writer threads, keep them open until theyre sent
+    private void closeFinished(List<Upload> finished) {
+        if (finished.isEmpty()) return;
+
+        for (Upload upload : finished) {
+            for (Peer stream : upload.connections) {
+                stream.awaitWrites();
             }
-        } catch (IOException ex) {
-            log("Error when closing fileInputStream: " + ex.getMessage());
         }
 
-        selectedFile = null;
-        sendState = SendState.IDLE;
+        for (Upload upload : finished) {
+            try {
+                if (upload.mapped != null) upload.mapped.close();
+                upload.channel.close();
+            } catch (IOException _) {}
+            closeStreams(upload.streams);
+        }
+        finished.clear();
+    }
+
+    private void removeUpload(Upload upload) {
+        upload.state = Upload.State.DONE;
+        uploads.remove(upload.id, upload);
+        DataStreams.unregister(upload.token);
+    }
+
+    // only logs at every 10%, and not at all for small files so a batch of them doesnt flood the console
+    private final long PROGRESS_MIN_SIZE = 1048576; //1MiB
+
+    private int logProgress(String direction, long bytesDone, long fileSize, long startTime, int lastPercent) {
+        if (fileSize < PROGRESS_MIN_SIZE) return lastPercent;
+
+        double percent = ((double) bytesDone /fileSize) * 100.0;
+        int wholePercent = (int) percent;
+
+        if (wholePercent % 10 == 0 && wholePercent != lastPercent) {
+            double elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            double speed = bytesDone / elapsedSeconds;
+            String fmtSpeed = FileUtil.getFileSize(speed);
+
+            String done = FileUtil.getFileSize(bytesDone);
+            String total = FileUtil.getFileSize(fileSize);
+            log("File " + direction + " progress: " + done + "/" + total + " | " + wholePercent + "% | " + fmtSpeed + "/s | " + (long) elapsedSeconds + "s elapsed");
+            return wholePercent;
+        }
+
+        return lastPercent;
+    }
+
+    public void listTransfers() {
+        if (uploads.isEmpty() && downloads.isEmpty() && folderUploads.isEmpty() && folderDownloads.isEmpty()) {
+            log("No file transfers");
+            return;
+        }
+
+        StringBuilder list = new StringBuilder("File transfers:");
+        for (FolderUpload folder : folderUploads.values()) {
+            Upload current = folder.current;
+            long bytesSent = folder.bytesSent + (current != null && current.isActive() ? current.bytesSent : 0);
+            list.append("\n#").append(folder.id).append(" folder upload ").append(folder.root.getFileName()).append(" | ").append(folder.state.name().toLowerCase())
+                    .append(" | ").append(folder.nextEntry).append("/").append(folder.entries.size()).append(" files | ")
+                    .append(FileUtil.getFileSize(bytesSent)).append("/").append(FileUtil.getFileSize(folder.totalSize));
+        }
+        for (FolderDownload folder : folderDownloads.values()) {
+            list.append("\n#").append(folder.id).append(" folder download ").append(folder.folderName).append(" | ").append(folder.state.name().toLowerCase())
+                    .append(" | ").append(folder.filesReceived).append("/").append(folder.fileCount).append(" files | ")
+                    .append(FileUtil.getFileSize(folder.bytesReceived)).append("/").append(FileUtil.getFileSize(folder.totalSize));
+        }
+        for (Upload upload : uploads.values()) {
+            list.append("\n#").append(upload.id).append(" upload ").append(upload.file.getFileName()).append(" | ").append(upload.state.name().toLowerCase())
+                    .append(" | ").append(FileUtil.getFileSize(upload.bytesSent)).append("/").append(FileUtil.getFileSize(upload.fileSize));
+        }
+        for (Download download : downloads.values()) {
+            if (download.folder != null) continue; // counted in its folder
+            list.append("\n#").append(download.id).append(" download ").append(download.fileName).append(" | ").append(download.state.name().toLowerCase())
+                    .append(" | ").append(FileUtil.getFileSize(download.bytesReceived)).append("/").append(FileUtil.getFileSize(download.fileSize));
+        }
+        log(MainUtil.cmdIndent(list.toString()));
+    }
+
+    // multi-stream
+
+    // main connection first, then whichever extra streams could be set up; a transfer never waits on a stream that failed
+    private void connectUploadStreams(Upload upload, int streamCount, long token) {
+        if (peer.isOutbound()) {
+            openDataStreams(streamCount, token, upload.streams);
+        } else { // peer connects to us, give it a moment
+            long deadline = System.currentTimeMillis() + STREAM_JOIN_TIMEOUT_MILLIS;
+            while (upload.streams.size() < streamCount && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException _) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // connect to the peer's open port and join the transfer with its token
+    private int openDataStreams(int count, long token, List<Peer> into) {
+        for (int i = 0; i < count; i++) {
+            try {
+                Socket socket = Main.openSocket(peer.host(), peer.port());
+                Peer stream = new Peer(socket, peer, token);
+                stream.start();
+                into.add(stream);
+            } catch (IOException e) {
+                log("Error when opening file data stream: " + e.getMessage());
+                break;
+            }
+        }
+
+        return into.size();
+    }
+
+    // a data stream sent FileStreamJoin with one of our tokens
+    public void addDataStream(Peer stream, long token) {
+        for (Upload upload : uploads.values()) {
+            if (upload.token == token && upload.isActive()) {
+                upload.streams.add(stream);
+                return;
+            }
+        }
+
+        for (Download download : downloads.values()) {
+            if (download.token == token && download.state == Download.State.RECEIVING) {
+                download.streams.add(stream);
+                return;
+            }
+        }
+
+        stream.silentClose();
+    }
+
+    private void closeStreams(List<Peer> streams) {
+        for (Peer stream : streams) {
+            stream.silentClose();
+        }
+        streams.clear();
+    }
+
+    // peer disconnected; partial downloads are kept so they can resume when the peer reconnects and sends them again
+    public synchronized void peerClosed() {
+        for (Upload upload : uploads.values()) {
+            removeUpload(upload); // sender thread closes its channel and streams
+        }
+        for (FolderUpload folder : folderUploads.values()) {
+            removeFolderUpload(folder);
+        }
+
+        for (FolderDownload folder : folderDownloads.values()) {
+            if (folder.state == FolderDownload.State.RECEIVING) log("Folder download #" + folder.id + " interrupted; files received so far are kept");
+            deleteFolderFiles(folder);
+            removeFolderDownload(folder);
+        }
+
+        for (Download download : downloads.values()) {
+            if (download.state == Download.State.RECEIVING) {
+                log("Download #" + download.id + " interrupted; partial file kept, it resumes if the peer sends it again");
+                keepPartialDownload(download);
+            }
+            removeDownload(download);
+        }
+    }
+
+    private void keepPartialDownload(Download download) {
+        download.state = Download.State.DONE; // stop data streams writing
+
+        try {
+            if (download.channel != null) download.channel.close();
+            if (download.chunkBitmap != null) download.chunkBitmap.close();
+        } catch (IOException e) {
+            log("Error when saving partially downloaded file: " + e.getMessage());
+        }
+    }
+
+    // cancelling
+
+    // no id cancels every upload
+    public void cancelUpload(Integer id, boolean fromPeer) {
+        List<Upload> cancelled = new ArrayList<>();
+        for (Upload upload : uploads.values()) {
+            if (id == null || upload.id == id) cancelled.add(upload); // allow requested
+        }
+
+        List<FolderUpload> cancelledFolders = new ArrayList<>();
+        for (FolderUpload folder : folderUploads.values()) {
+            if (id == null || folder.id == id) cancelledFolders.add(folder);
+        }
+
+        if (cancelled.isEmpty() && cancelledFolders.isEmpty()) {
+            if (!fromPeer) log("Unable to cancel upload as you are not currently uploading a file" + (id != null ? " with id " + id : ""));
+            return;
+        }
+
+        for (Upload upload : cancelled) {
+            cancelUpload(upload, fromPeer);
+        }
+        for (FolderUpload folder : cancelledFolders) {
+            cancelFolderUpload(folder, fromPeer);
+        }
+    }
+
+    private void cancelFolderUpload(FolderUpload folder, boolean fromPeer) {
+        if (folder.state == FolderUpload.State.DONE) return;
+
+        if (!fromPeer) { // will result in an endless loop of packet sending without this flag
+            peer.writePacket(new FileCancelUpload(folder.id));
+        } else {
+            log("Peer cancelled folder download #" + folder.id);
+        }
+
+        removeFolderUpload(folder); // sender thread closes the current file
+        log("Cancelled folder upload #" + folder.id + " successfully");
+    }
+
+    private void cancelUpload(Upload upload, boolean fromPeer) {
+        if (!fromPeer) { // will result in an endless loop of packet sending without this flag
+            peer.writePacket(new FileCancelUpload(upload.id));
+        } else {
+            log("Peer cancelled download #" + upload.id);
+        }
+
+        log("Cancelling upload #" + upload.id + "...");
+
+        Upload.State state = upload.state;
+        removeUpload(upload); // sender thread closes the channel and data streams once their queued chunks are out
+        if (state != Upload.State.SENDING) closeStreams(upload.streams);
+
         log("Cancelled upload successfully");
     }
 
-    public void cancelDownload(boolean fromPeer) {
-        if (receiveState != ReceiveState.RECEIVING && !fromPeer) {
-            log("Unable to cancel download as you are not currently downloading a file");
+    // no id cancels every download
+    public void cancelDownload(Integer id, boolean fromPeer) {
+        List<Download> cancelled = new ArrayList<>();
+        for (Download download : downloads.values()) {
+            if (download.folder != null) continue; // cancelled with their folder
+            if ((id == null || download.id == id) && (download.state == Download.State.RECEIVING || fromPeer)) cancelled.add(download);
+        }
+
+        List<FolderDownload> cancelledFolders = new ArrayList<>();
+        for (FolderDownload folder : folderDownloads.values()) {
+            if ((id == null || folder.id == id) && (folder.state == FolderDownload.State.RECEIVING || fromPeer)) cancelledFolders.add(folder);
+        }
+
+        if (cancelled.isEmpty() && cancelledFolders.isEmpty()) {
+            if (!fromPeer) log("Unable to cancel download as you are not currently downloading a file" + (id != null ? " with id " + id : ""));
             return;
         }
 
+        for (Download download : cancelled) {
+            cancelDownload(download, fromPeer);
+        }
+        for (FolderDownload folder : cancelledFolders) {
+            cancelFolderDownload(folder, fromPeer);
+        }
+    }
+
+    // files that finished are kept, the ones still being written are deleted
+    private void cancelFolderDownload(FolderDownload folder, boolean fromPeer) {
+        if (folder.state == FolderDownload.State.DONE) return;
+
+        if (!fromPeer) { // will result in an endless loop of packet sending without this flag
+            peer.writePacket(new FileCancelDownload(folder.id));
+        } else {
+            log("Peer cancelled folder upload #" + folder.id);
+        }
+
+        deleteFolderFiles(folder);
+        removeFolderDownload(folder);
+        log("Cancelled folder download #" + folder.id + "; " + folder.filesReceived + "/" + folder.fileCount + " files were received");
+    }
+
+    private void deleteFolderFiles(FolderDownload folder) {
+        folder.state = FolderDownload.State.DONE;
+
+        for (Download download : downloads.values()) {
+            if (download.folder != folder) continue;
+
+            download.state = Download.State.DONE; // stop readers writing before the file is deleted
+            try {
+                if (download.channel != null) {
+                    download.channel.close();
+                    Files.deleteIfExists(download.target);
+                }
+            } catch (IOException e) {
+                log("Error when deleting partially downloaded file: " + e.getMessage());
+            }
+            removeDownload(download);
+        }
+    }
+
+    private void cancelDownload(Download download, boolean fromPeer) {
         if (!fromPeer) { // will result in an endless loop of packet sending without this flag
-            peer.writePacket(new FileCancelDownload());
+            peer.writePacket(new FileCancelDownload(download.id));
         } else {
-            log("Peer cancelled upload");
+            log("Peer cancelled upload #" + download.id);
+        }
+
+        log("Cancelling download #" + download.id + "...");
+
+        if (fromPeer && download.chunkBitmap != null) { // peer may send it again later, keep what we have
+            keepPartialDownload(download);
+            removeDownload(download);
+            log("Cancelled download; partial file kept, it resumes if the peer sends it again");
+            return;
         }
 
-        log("Cancelling download...");
+        download.state = Download.State.DONE; // stop data streams writing before the file is deleted
 
         try {
-            if (fileOutputStream != null) {
-                fileOutputStream.close();
+            if (download.channel != null) {
+                download.channel.close();
             }
         } catch (IOException e) {
-            log("Error when closing fileOutputStream: " + e.getMessage());
+            log("Error when closing fileOutputChannel: " + e.getMessage());
         }
 
         try {
-            if (target != null) {
-                Files.delete(target);
+            if (download.target != null) {
+                Files.delete(download.target);
             }
+            if (download.chunkBitmap != null) download.chunkBitmap.delete();
         } catch (IOException e) {
             log("Error when deleting partially downloaded file: " + e.getMessage());
         }
 
-        resetReceiveStates();
+        removeDownload(download);
         log("Cancelled download successfully");
     }
 }
@@ -0,0 +1,45 @@
+package processors;
+
+import network.packets.FolderRequest;
+
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledFuture;
+
+class FolderDownload {
+    // a folder being received from a peer; each file becomes a Download as its FolderManifest entry arrives
+
+    enum State {
+        PEER_REQUESTED,
+        RECEIVING,
+        DONE
+    }
+
+    final int id;
+    final String folderName;
+    final int fileCount;
+    final long totalSize;
+    final int chunkSize;
+    final int maxChunkSize;
+    volatile State state = State.PEER_REQUESTED;
+    ScheduledFuture<?> requestTimeout;
+
+    Path root;
+    int filesReceived;
+    long bytesReceived;
+    int ungranted; // see Download
+    int lastPercent = -1;
+    long startTime;
+
+    FolderDownload(FolderRequest request) {
+        this.id = request.getTransferId();
+        this.folderName = request.getFolderName();
+        this.fileCount = request.getFileCount();
+        this.totalSize = request.getTotalSize();
+        this.chunkSize = request.getChunkSize();
+        this.maxChunkSize = request.getMaxChunkSize();
+    }
+
+    boolean isComplete() {
+        return filesReceived >= fileCount;
+    }
+}
@@ -0,0 +1,44 @@
+package processors;
+
+import network.compression.CompressionSampler;
+import network.packets.FolderManifest;
+import util.TokenBucket;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+class FolderUpload {
+    // a folder being sent to a peer; its files go one after another as Uploads, so the folder takes one turn
+    // in the round robin like a single file and only one of its files is open at a time
+
+    enum State {
+        REQUESTED,
+        SENDING,
+        VERIFYING, // every file sent, waiting for the peer's FileComplete
+        DONE
+    }
+
+    final int id; // file i is transfer id + 1 + i
+    final Path root;
+    final List<FolderManifest.Entry> entries;
+    final long totalSize;
+    volatile State state = State.REQUESTED;
+
+    int nextEntry;
+    int announced; // entries sent in FolderManifest packets so far
+    volatile Upload current;
+    final CompressionSampler sampler = new CompressionSampler(); // a folder of photos is all photos
+    final AtomicLong credit = new AtomicLong();
+    final TokenBucket limit = new TokenBucket();
+    long bytesSent; // of finished files
+    int lastPercent = -1;
+    long startTime;
+
+    FolderUpload(int id, Path root, List<FolderManifest.Entry> entries, long totalSize) {
+        this.id = id;
+        this.root = root;
+        this.entries = entries;
+        this.totalSize = totalSize;
+    }
+}
@@ -1,7 +1,9 @@
 package processors;
 
 import main.Main;
+import util.FileUtil;
 import util.MainUtil;
+import util.ThreadUtil;
 
 public class MainInputProcessor implements InputProcessor {
     private String currentCmd;
@@ -24,6 +26,10 @@ public class MainInputProcessor implements InputProcessor {
             case "cmd" -> cmd();
             case "connect" -> connect(args);
             case "port" -> port(args);
+            case "engine" -> engine(args);
+            case "threads" -> threads(args);
+            case "auth" -> auth(args);
+            case "limit" -> limit(args);
             case "exit" -> System.exit(0);
             default -> invalidCommand();
         }
@@ -37,6 +43,10 @@ public class MainInputProcessor implements InputProcessor {
             cmd - command list
             connect [ip:port] - connect to a peer
             port [open/close] [number IF open] - open/close ports
+            engine [nio/blocking] [threads IF nio] - network engine for new connections
+            threads [virtual/platform] - thread type for new peer/file tasks
+            auth [auto/manual] - authorize inbound connections without 'auth accept', for trusted networks and load tests
+            limit [KB/s/off] - cap uploads to every peer together, peers share it evenly
             exit - end the program
             """));
     }
@@ -87,4 +97,76 @@ public class MainInputProcessor implements InputProcessor {
             Main.acceptInbound(port);
         }
     }
+
+    private void engine(String[] args) {
+        if (args.length < 2) {
+            invalidCommand();
+            return;
+        }
+
+        switch (args[1]) {
+            case "blocking" -> Main.useNio(false, 0);
+            case "nio" -> {
+                int loopCount = Runtime.getRuntime().availableProcessors();
+                if (args.length == 3) {
+                    try {
+                        loopCount = Integer.parseInt(args[2]);
+                    } catch (NumberFormatException e) {
+                        invalidCommand();
+                        return;
+                    }
+                }
+
+                Main.useNio(true, loopCount);
+            }
+            default -> invalidCommand();
+        }
+    }
+
+    private void auth(String[] args) {
+        if (args.length != 2) {
+            invalidCommand();
+            return;
+        }
+
+        switch (args[1]) {
+            case "auto" -> Main.setAutoAuth(true);
+            case "manual" -> Main.setAutoAuth(false);
+            default -> invalidCommand();
+        }
+    }
+
+    private void threads(String[] args) {
+        if (args.length != 2) {
+            invalidCommand();
+            return;
+        }
+
+        switch (args[1]) {
+            case "virtual" -> ThreadUtil.setVirtualThreads(true);
+            case "platform" -> ThreadUtil.setVirtualThreads(false);
+            default -> {
+                invalidCommand();
+                return;
+            }
+        }
+
+        log("Using " + args[1] + " threads for new peer/file tasks");
+    }
+
+    private void limit(String[] args) {
+        if (args.length != 2) {
+            invalidCommand();
+            return;
+        }
+
+        Long bytesPerSecond = MainUtil.parseRate(args[1]);
+        if (bytesPerSecond == null) {
+            invalidCommand();
+            return;
+        }
+
+        FileProcessor.setGlobalLimit(bytesPerSecond);
+        log(bytesPerSecond > 0 ? "Uploads to all peers limited to " + FileUtil.getFileSize(bytesPerSecond) + "/s" : "Uploads no longer limited");
+    }
 }
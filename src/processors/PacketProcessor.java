@@ -1,15 +1,50 @@
 package processors;
 
+import network.DataStreams;
 import network.Peer;
 import network.packets.*;
 
+import java.util.function.Consumer;
+
 public class PacketProcessor {
     private final Peer peer;
 
     // take a packet received by a peer and process it
 
+    // handlers indexed by packet code, so dispatch is an array lookup instead of a string switch
+    @SuppressWarnings("unchecked")
+    private final Consumer<Packet>[] handlers = (Consumer<Packet>[]) new Consumer<?>[256];
+
     public PacketProcessor(Peer conn) {
         peer = conn;
+
+        register(PacketType.PING, packet -> ping((Ping) packet));
+        register(PacketType.MESSAGE, packet -> message((Message) packet));
+        register(PacketType.ACCEPT, packet -> peer.connectionVerifier().accept());
+        register(PacketType.AUTH, packet -> auth((Auth) packet));
+        register(PacketType.KEEP_ALIVE, packet -> {}); // do nothing; is keeping socket alive
+        register(PacketType.HELLO, packet -> peer.helloReceived());
+        register(PacketType.COMPRESSION, packet -> peer.setPeerCodecs(((Compression) packet).getCodecs()));
+        register(PacketType.FILE_DATA, packet -> peer.fileProcessor().processData((FileData) packet));
+        register(PacketType.FILE_CHUNK, packet -> peer.fileProcessor().processData((FileData) packet));
+        register(PacketType.FILE_HEADER, packet -> peer.fileProcessor().processHeader((FileHeader) packet));
+        register(PacketType.FILE_FOOTER, packet -> peer.fileProcessor().processFooter((FileFooter) packet));
+        register(PacketType.FILE_RESPONSE, packet -> peer.fileProcessor().processResponse((FileResponse) packet));
+        register(PacketType.FILE_REQUEST, packet -> peer.fileProcessor().processRequest((FileRequest) packet));
+        register(PacketType.FILE_CANCEL_UPLOAD, packet -> peer.fileProcessor().cancelDownload(((FileCancelUpload) packet).getTransferId(), true)); // we reverse these 2 as the packet means the peer is cancelling upload
+        register(PacketType.FILE_CANCEL_DOWNLOAD, packet -> peer.fileProcessor().cancelUpload(((FileCancelDownload) packet).getTransferId(), true)); // so we must therefore cancel the download
+        register(PacketType.FILE_STREAM_JOIN, packet -> streamJoin((FileStreamJoin) packet));
+        register(PacketType.FOLDER_REQUEST, packet -> peer.fileProcessor().processFolderRequest((FolderRequest) packet));
+        register(PacketType.FOLDER_MANIFEST, packet -> peer.fileProcessor().processManifest((FolderManifest) packet));
+        register(PacketType.FILE_RESEND, packet -> peer.fileProcessor().processResend((FileResend) packet));
+        register(PacketType.FILE_COMPLETE, packet -> peer.fileProcessor().processComplete((FileComplete) packet));
+        register(PacketType.DELTA_OFFER, packet -> peer.fileProcessor().processDeltaOffer((DeltaOffer) packet));
+        register(PacketType.DELTA_REPLY, packet -> peer.fileProcessor().processDeltaReply((DeltaReply) packet));
+        register(PacketType.FILE_CREDIT, packet -> peer.fileProcessor().processCredit((FileCredit) packet));
+    }
+
+    private void register(PacketType type, Consumer<Packet> handler) {
+        handlers[type.getCode()] = handler;
     }
 
     private void log(String logText) {
@@ -17,37 +52,41 @@ public class PacketProcessor {
     }
 
     public void handle(Packet packet) {
-        String id = packet.getId();
+        PacketType type = packet.getType();
 
-        //log("PACKET ID: " + id); //debug
+        //log("PACKET ID: " + type.getId()); //debug
 
         boolean isAccepted = peer.connectionVerifier().isAccepted();
         boolean isAuthorized = peer.connectionVerifier().isPeerAuthorized();
 
-        if (!isAccepted && !id.equals("Accept")) return; // before auth -> only accept packets allowed
-        if (isAccepted && !isAuthorized && !id.equals("Auth")) return; // before auth but accepted -> only accept auth packets
-
-        switch (id) {
-            case "Ping" -> ping((Ping) packet);
-            case "Message" -> message((Message) packet);
-            case "Accept" -> peer.connectionVerifier().accept();
-            case "Auth" -> auth((Auth) packet);
-            case "KeepAlive" -> {} // do nothing; is keeping socket alive
-            case "FileData" -> peer.fileProcessor().processData((FileData) packet);
-            case "FileHeader" -> peer.fileProcessor().processHeader((FileHeader) packet);
-            case "FileFooter" -> peer.fileProcessor().processFooter();
-            case "FileResponse" -> peer.fileProcessor().processResponse((FileResponse) packet);
-            case "FileRequest" -> peer.fileProcessor().processRequest((FileRequest) packet);
-            case "FileCancelUpload" -> peer.fileProcessor().cancelDownload(true); // we reverse these 2 as the packet means the peer is cancelling upload
-            case "FileCancelDownload" -> peer.fileProcessor().cancelUpload(true); // so we must therefore cancel the download
-            default -> unknownPacket(packet);
+        if (!isAccepted && type != PacketType.ACCEPT && type != PacketType.FILE_STREAM_JOIN) return; // before auth -> only accept packets allowed, or a data connection joining
+        if (isAccepted && !isAuthorized && type != PacketType.AUTH && type != PacketType.HELLO && type != PacketType.COMPRESSION) return; // before auth but accepted -> only accept auth packets, and the version handshake
+
+        Consumer<Packet> handler = handlers[type.getCode()];
+        if (handler == null) {
+            unknownPacket(packet);
+            return;
         }
+
+        handler.accept(packet);
     }
 
     private void unknownPacket(Packet packet) {
         log("Unknown packet received: " + packet.getId() + " | " + packet);
     }
 
+    // connection was opened as an extra data stream for a file transfer, instead of as a new peer
+    private void streamJoin(FileStreamJoin packet) {
+        Peer owner = DataStreams.find(packet.getToken());
+        if (owner == null || peer.connectionVerifier().isAccepted()) { // unknown token, or sent on a normal connection
+            peer.silentClose();
+            return;
+        }
+
+        peer.joinAsDataStream(owner);
+        owner.fileProcessor().addDataStream(peer, packet.getToken());
+    }
+
     private void message(Message packet) {
         log("MSG - " + packet.getText());
     }
@@ -66,6 +105,8 @@ public class PacketProcessor {
 
     private void ping(Ping packet) {
         if (packet.isReturning()) { // was sent by self
+            if (peer.fileProcessor().pingReturned(packet)) return; // sent to measure the link for uploads, see ChunkSizer
+
             long timeTaken = System.currentTimeMillis() - packet.getTimestamp();
             log("Ping echoed successfully in " + timeTaken + "ms");
 
@@ -4,6 +4,8 @@ import network.Peer;
 import network.packets.*;
 import util.MainUtil;
 
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 
@@ -50,6 +52,8 @@ public class PeerInputProcessor implements InputProcessor {
             case "auth" -> auth(args);
             case "exit" -> peer.close();
             case "file" -> file(args);
+            case "compress" -> compress(args);
+            case "limit" -> limit(args);
             default -> invalidCommand();
         }
 
@@ -63,8 +67,17 @@ public class PeerInputProcessor implements InputProcessor {
             msg [text] - send message to peer
             auth [accept/decline] - authenticate inbound connection
             ping - ping peer
-            file [accept/decline/upload]
-                 [cancel upload/download] - file transfer
+            file upload [path] - send a file, or one or more chosen ones if no path
+            file folder [path] - send a folder and everything in it
+            file [accept/decline] [id] - respond to requests, all pending if no id
+            file cancel [upload/download] [id] - cancel transfers, all if no id
+            file list - transfers in progress
+            file streams [0-8] - extra connections to stripe uploads over
+            file delta [on/off] - only send the parts of a file the peer doesnt already have
+            file mmap [on/off] - read big uploads through a memory mapping
+            file limit [id] [KB/s/off] - cap one upload
+            compress [on/off] - compress messages and file chunks sent to this peer
+            limit [KB/s/off] - cap uploads to this peer
             exit - disconnect from peer
             """));
     }
@@ -98,6 +111,29 @@ public class PeerInputProcessor implements InputProcessor {
         }
     }
 
+    private void compress(String[] args) {
+        if (args.length != 2) {
+            invalidCommand();
+            return;
+        }
+
+        switch (args[1]) {
+            case "on" -> peer.setCompression(true);
+            case "off" -> peer.setCompression(false);
+            default -> invalidCommand();
+        }
+    }
+
+    private void limit(String[] args) {
+        Long bytesPerSecond = args.length == 2 ? MainUtil.parseRate(args[1]) : null;
+        if (bytesPerSecond == null) {
+            invalidCommand();
+            return;
+        }
+
+        peer.fileProcessor().setPeerLimit(bytesPerSecond);
+    }
+
     private void file(String[] args) {
         if (args.length < 2) {
             invalidCommand();
@@ -106,25 +142,98 @@ public class PeerInputProcessor implements InputProcessor {
 
         String arg1 = args[1];
 
-        if (args.length == 2) {
+        if (args.length >= 3 && (arg1.equals("upload") || arg1.equals("folder"))) { // path can have spaces in it
+            Path path;
+            try {
+                path = Path.of(currentCmd.substring(currentCmd.indexOf(arg1) + arg1.length()).trim());
+            } catch (InvalidPathException _) {
+                invalidCommand();
+                return;
+            }
+
+            if (arg1.equals("upload")) {
+                peer.fileProcessor().uploadFile(path);
+            } else {
+                peer.fileProcessor().uploadFolder(path);
+            }
+        } else if (args.length == 2) {
             switch (arg1) {
                 case "upload" -> peer.fileProcessor().selectFile();
-                case "accept" -> peer.fileProcessor().acceptRequest();
-                case "decline" -> peer.fileProcessor().declineRequest();
+                case "folder" -> peer.fileProcessor().selectFolder();
+                case "accept" -> peer.fileProcessor().acceptRequest(null);
+                case "decline" -> peer.fileProcessor().declineRequest(null);
+                case "list" -> peer.fileProcessor().listTransfers();
                 default -> invalidCommand();
             }
         } else if (args.length == 3) {
-            if (arg1.equals("cancel")) {
-                switch (args[2]) {
-                    case "upload" -> peer.fileProcessor().cancelUpload(false);
-                    case "download" -> peer.fileProcessor().cancelDownload(false);
-                    default -> invalidCommand();
+            switch (arg1) {
+                case "cancel" -> {
+                    switch (args[2]) {
+                        case "upload" -> peer.fileProcessor().cancelUpload(null, false);
+                        case "download" -> peer.fileProcessor().cancelDownload(null, false);
+                        default -> invalidCommand();
+                    }
                 }
-            } else {
+                case "accept" -> {
+                    Integer id = parseInt(args[2]);
+                    if (id != null) peer.fileProcessor().acceptRequest(id);
+                }
+                case "decline" -> {
+                    Integer id = parseInt(args[2]);
+                    if (id != null) peer.fileProcessor().declineRequest(id);
+                }
+                case "streams" -> {
+                    Integer streams = parseInt(args[2]);
+                    if (streams != null) peer.fileProcessor().setStreams(streams);
+                }
+                case "delta" -> {
+                    switch (args[2]) {
+                        case "on" -> peer.fileProcessor().setDeltaMode(true);
+                        case "off" -> peer.fileProcessor().setDeltaMode(false);
+                        default -> invalidCommand();
+                    }
+                }
+                case "mmap" -> {
+                    switch (args[2]) {
+                        case "on" -> peer.fileProcessor().setMappedMode(true);
+                        case "off" -> peer.fileProcessor().setMappedMode(false);
+                        default -> invalidCommand();
+                    }
+                }
+                default -> invalidCommand();
+            }
+        } else if (args.length == 4 && arg1.equals("limit")) {
+            Integer id = parseInt(args[2]);
+            if (id == null) return;
+
+            Long bytesPerSecond = MainUtil.parseRate(args[3]);
+            if (bytesPerSecond == null) {
                 invalidCommand();
+                return;
+            }
+
+            peer.fileProcessor().setTransferLimit(id, bytesPerSecond);
+        } else if (args.length == 4 && arg1.equals("cancel")) {
+            Integer id = parseInt(args[3]);
+            if (id == null) return;
+
+            switch (args[2]) {
+                case "upload" -> peer.fileProcessor().cancelUpload(id, false);
+                case "download" -> peer.fileProcessor().cancelDownload(id, false);
+                default -> invalidCommand();
             }
         } else {
             invalidCommand();
         }
     }
+
+    // logs invalid command and returns null if not a number
+    private Integer parseInt(String arg) {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException _) {
+            invalidCommand();
+            return null;
+        }
+    }
 }
@@ -0,0 +1,104 @@
+package processors;
+
+import network.Peer;
+import network.compression.CompressionSampler;
+import util.FileUtil;
+import util.MappedFile;
+import util.TokenBucket;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+class Upload {
+    // one file being sent to a peer, from the FileRequest until the peer has checked it (or the footer is written, for older peers)
+
+    enum State {
+        REQUESTED,
+        OFFERING, // delta mode; chunk hashes sent, waiting for the DeltaReply
+        CONNECTING, // opening/waiting for the extra data streams
+        SENDING,
+        VERIFYING, // footer sent, chunks that fail the peer's checksum are sent again until it sends FileComplete
+        DONE
+    }
+
+    final int id;
+    final Path file;
+    final long fileSize;
+    final int chunkSize;
+    volatile State state = State.REQUESTED;
+
+    // multi-stream; token is only set if this side hands it out, see FileRequest
+    long token;
+    final List<Peer> streams = new CopyOnWriteArrayList<>();
+    List<Peer> connections; // main connection + streams, the i-th chunk sent goes on connection i % size
+
+    FileChannel channel; // only closed once every chunk queued from it has been written
+    MappedFile mapped; // big files with cmd 'file mmap on', chunks are hashed from it; still sent from the channel
+    BitSet skip = new BitSet(); // chunks the peer already has from an earlier attempt
+
+    final MessageDigest digest; // of the chunks so far, in the footer; null for older peers
+
+    // delta mode; chunks are cut by content, chunk i is offsets[i] to offsets[i + 1] rather than i * chunkSize
+    boolean isDelta;
+    volatile long[] offsets;
+    int acceptedStreams; // from the FileResponse, streams are only connected once the DeltaReply comes back
+    long acceptedToken;
+
+    final CompressionSampler sampler; // see FileProcessor.compressChunk(); a folder's files share one
+    final AtomicLong credit; // flow control; bytes the peer has said it can take, see FileCredit. a folder's files share one
+    final TokenBucket limit; // set by cmd 'file limit', shared the same way
+    long bytesSaved;
+
+    int nextIndex; // in units of chunkSize, a chunk can be several of them; see ChunkSizer
+    int chunksSent;
+    long bytesSent;
+    int lastPercent = -1;
+    long startTime;
+
+    final FolderUpload folder; // null unless this is one of a folder's files
+
+    Upload(int id, Path file, long fileSize, int chunkSize, FolderUpload folder) {
+        this.id = id;
+        this.file = file;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.folder = folder;
+        this.digest = FileUtil.newDigest();
+        this.sampler = folder.sampler;
+        this.credit = folder.credit;
+        this.limit = folder.limit;
+    }
+
+    Upload(int id, Path file, long fileSize, int chunkSize) {
+        this.id = id;
+        this.file = file;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.folder = null;
+        this.digest = id != 0 ? FileUtil.newDigest() : null;
+        this.sampler = new CompressionSampler();
+        this.credit = new AtomicLong(id != 0 ? 0 : Long.MAX_VALUE); // older peers dont grant any
+        this.limit = new TokenBucket();
+    }
+
+    int chunkCount() {
+        return offsets != null ? offsets.length - 1 : (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    long offsetOf(int index) {
+        return offsets != null ? offsets[index] : (long) index * chunkSize;
+    }
+
+    int lengthOf(int index) {
+        return offsets != null ? (int) (offsets[index + 1] - offsets[index]) : (int) Math.min(chunkSize, fileSize - (long) index * chunkSize);
+    }
+
+    boolean isActive() {
+        return state != State.DONE;
+    }
+}
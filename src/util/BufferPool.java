@@ -0,0 +1,49 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    // reusable direct buffers so steady-state transfers dont allocate per chunk
+    // buffers are only pooled if they are exactly bufferSize; anything bigger is a one-off
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    // returns a cleared buffer with its limit set to size
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize) return ByteBuffer.allocate(size); // oversized; heap so a bad length cant eat direct memory
+
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        } else {
+            pooled.decrementAndGet();
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) return;
+
+        if (pooled.incrementAndGet() > maxPooled) { // pool is full, let gc have it
+            pooled.decrementAndGet();
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize() { return bufferSize; }
+}
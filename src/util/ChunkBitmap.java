@@ -0,0 +1,142 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+public class ChunkBitmap {
+    // which chunks of a partial download are on disk, kept next to it as "<file>.chunks"
+    // header is the source's size, chunk size and last modified time, so a different file with the same name starts over
+    // bits are written out every FLUSH_INTERVAL chunks and on close; losing the last few only means theyre sent again
+    // only the 64 bit words that changed since the last flush are written, at their own offsets, so a flush costs the
+    // same on a big file as on a small one
+
+    private static final int HEADER_SIZE = 20;
+    private static final int FLUSH_INTERVAL = 64;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final BitSet received;
+    private final long fileSize;
+    private final int chunkSize;
+    private final boolean isResumed;
+    private int unflushed;
+    private final BitSet dirtyWords = new BitSet(); // word i holds chunks i * 64 to i * 64 + 63
+
+    private ChunkBitmap(Path path, FileChannel channel, BitSet received, long fileSize, int chunkSize, boolean isResumed) {
+        this.path = path;
+        this.channel = channel;
+        this.received = received;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.isResumed = isResumed;
+    }
+
+    public static Path pathFor(Path target) {
+        return target.resolveSibling(target.getFileName() + ".chunks");
+    }
+
+    // loads the bitmap if it belongs to the same source file and the partial file is still there, otherwise starts a new one
+    public static ChunkBitmap open(Path target, long fileSize, int chunkSize, long lastModified) throws IOException {
+        Path path = pathFor(target);
+
+        if (Files.exists(path) && Files.exists(target)) {
+            ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(path));
+
+            if (saved.remaining() >= HEADER_SIZE && saved.getLong() == fileSize && saved.getInt() == chunkSize && saved.getLong() == lastModified) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+                return new ChunkBitmap(path, channel, BitSet.valueOf(saved), fileSize, chunkSize, true);
+            }
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(fileSize).putInt(chunkSize).putLong(lastModified).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+
+        return new ChunkBitmap(path, channel, new BitSet(), fileSize, chunkSize, false);
+    }
+
+    // false if the chunk was already on disk
+    public synchronized boolean set(int index) {
+        if (received.get(index)) return false;
+        received.set(index);
+        dirtyWords.set(index >>> 6);
+
+        if (++unflushed >= FLUSH_INTERVAL) {
+            try {
+                flush();
+            } catch (IOException _) {} // retried on the next flush, worst case the chunks are resent
+        }
+        return true;
+    }
+
+    // a chunk several units long; counts as one towards the next flush
+    public synchronized void set(int from, int to) {
+        received.set(from, to);
+        dirtyWords.set(from >>> 6, ((to - 1) >>> 6) + 1);
+
+        if (++unflushed >= FLUSH_INTERVAL) {
+            try {
+                flush();
+            } catch (IOException _) {}
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        for (int from = dirtyWords.nextSetBit(0); from >= 0; from = dirtyWords.nextSetBit(from)) {
+            int to = dirtyWords.nextClearBit(from);
+
+            // same layout as BitSet.toByteArray(), little endian words; toLongArray() leaves off trailing zero words
+            ByteBuffer bits = ByteBuffer.allocate((to - from) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (long word : received.get(from * 64, to * 64).toLongArray()) {
+                bits.putLong(word);
+            }
+            bits.clear();
+
+            long position = HEADER_SIZE + (long) from * Long.BYTES;
+            while (bits.hasRemaining()) {
+                position += channel.write(bits, position);
+            }
+
+            dirtyWords.clear(from, to);
+            from = to;
+        }
+        unflushed = 0;
+    }
+
+    public synchronized byte[] toByteArray() {
+        return received.toByteArray();
+    }
+
+    public synchronized long getReceivedBytes() {
+        long bytes = 0;
+        for (int i = received.nextSetBit(0); i >= 0; i = received.nextSetBit(i + 1)) {
+            bytes += Math.min(chunkSize, fileSize - (long) i * chunkSize);
+        }
+        return bytes;
+    }
+
+    public boolean isResumed() { return isResumed; }
+
+    // keep the bitmap so the download can resume
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // download finished, or was cancelled and the partial file deleted
+    public void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
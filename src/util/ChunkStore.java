@@ -0,0 +1,121 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class ChunkStore {
+    // chunks of files received in delta mode, "p2p-test/chunks/ab/abcdef..." named by their sha-256
+    // a later version of the same file only needs the chunks that arent in here; see ContentChunker
+    // a chunk is only used if it still hashes to its name, a damaged one is just sent again
+    // the store is capped at MAX_BYTES: reading a chunk touches its modified time, and once a write goes over the cap
+    // the least recently used chunks are deleted until it's back under LOW_BYTES. losing one only costs sending it again
+
+    private static final long MAX_BYTES = 2L * 1024 * 1024 * 1024; //2GB
+    private static final long LOW_BYTES = MAX_BYTES / 10 * 9; // evicting a bit more than needed so it doesnt run on every write
+
+    private static final HexFormat hex = HexFormat.of();
+    private static long storedBytes = -1; // guarded by ChunkStore.class, -1 until the directory has been counted
+
+    private static Path pathFor(byte[] hash) {
+        String name = hex.formatHex(hash);
+        return FileUtil.getChunksDir().resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    // null if the chunk isnt stored, or doesnt match its hash anymore
+    public static byte[] read(byte[] hash) {
+        Path path = pathFor(hash);
+
+        try {
+            byte[] chunk = Files.readAllBytes(path);
+            if (Arrays.equals(FileUtil.newDigest().digest(chunk), hash)) {
+                Files.setLastModifiedTime(path, FileTime.from(Instant.now())); // used, so it's evicted last
+                return chunk;
+            }
+
+            delete(path, chunk.length);
+            return null;
+        } catch (IOException _) {
+            return null;
+        }
+    }
+
+    public static void write(byte[] hash, ByteBuffer chunk) throws IOException {
+        Path path = pathFor(hash);
+        if (Files.exists(path)) return;
+
+        int length = chunk.remaining();
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+
+        synchronized (ChunkStore.class) {
+            if (storedBytes < 0) storedBytes = count(); // includes this one
+            else storedBytes += length;
+            if (storedBytes > MAX_BYTES) evict();
+        }
+    }
+
+    private static synchronized void delete(Path path, long length) throws IOException {
+        if (Files.deleteIfExists(path) && storedBytes >= 0) storedBytes -= length;
+    }
+
+    // whatever an earlier run left in the store
+    private static long count() throws IOException {
+        long total = 0;
+        for (Stored stored : list()) {
+            total += stored.size();
+        }
+        return total;
+    }
+
+    // oldest first until the store is under LOW_BYTES; a chunk that cant be deleted is left and counted
+    private static void evict() throws IOException {
+        List<Stored> chunks = list();
+        chunks.sort(Comparator.comparingLong(Stored::lastUsed));
+
+        storedBytes = 0;
+        for (Stored stored : chunks) {
+            storedBytes += stored.size();
+        }
+        for (Stored stored : chunks) {
+            if (storedBytes <= LOW_BYTES) break;
+            try {
+                if (Files.deleteIfExists(stored.path())) storedBytes -= stored.size();
+            } catch (IOException _) {}
+        }
+    }
+
+    private static List<Stored> list() throws IOException {
+        List<Stored> chunks = new ArrayList<>();
+        Path dir = FileUtil.getChunksDir();
+        if (!Files.isDirectory(dir)) return chunks;
+
+        try (Stream<Path> paths = Files.walk(dir, 2)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) chunks.add(new Stored(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } catch (IOException _) {} // deleted by a read() in the meantime
+            }
+        }
+        return chunks;
+    }
+
+    private record Stored(Path path, long size, long lastUsed) {}
+}
@@ -0,0 +1,91 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ContentChunker {
+    // content-defined chunking for delta transfers; a boundary is wherever a gear rolling hash of the last 64 bytes
+    // hits the mask, rather than every 64KB, so an insert early in a file only changes the chunks around it instead
+    // of shifting every chunk after it. both versions of a file then share most of their chunks
+
+    public static final int MIN_SIZE = 16384; //16KB
+    public static final int MAX_SIZE = 65536; //64KB, the same as fixed chunks so they still fit the pooled receive buffers
+    private static final long MASK = 0xFFFE000000000000L; // top 15 bits, ~32KB past MIN_SIZE on average
+
+    // fixed seed, every peer has to cut the same file in the same places; Random's sequence is part of its spec
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x70327074L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    // chunk i is offsets[i] to offsets[i + 1], hashes[i] is its sha-256
+    public record Chunks(long[] offsets, byte[][] hashes) {}
+
+    private static final int READ_SIZE = 1048576; //1MiB
+
+    public static Chunks split(FileChannel channel) throws IOException {
+        List<byte[]> hashes = new ArrayList<>();
+        long[] offsets = new long[1024];
+        long fileOffset = 0; // end of the last chunk
+        MessageDigest digest = FileUtil.newDigest();
+
+        byte[] buffer = new byte[READ_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        int start = 0; // of the current chunk
+        int end = 0; // of the data read so far
+        int position = 0;
+        long hash = 0;
+
+        while (true) {
+            if (position == end) { // move the current chunk to the front and read more after it
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                position -= start;
+                end -= start;
+                start = 0;
+
+                wrapped.clear().position(end);
+                int read = channel.read(wrapped);
+                if (read <= 0) break;
+                end += read;
+            }
+
+            hash = (hash << 1) + GEAR[buffer[position++] & 0xFF];
+            int length = position - start;
+
+            if ((length >= MIN_SIZE && (hash & MASK) == 0) || length == MAX_SIZE) {
+                digest.update(buffer, start, length);
+                hashes.add(digest.digest());
+                fileOffset += length;
+                offsets = add(offsets, hashes.size(), fileOffset);
+
+                start = position;
+                hash = 0;
+            }
+        }
+
+        if (end > start) { // rest of the file
+            digest.update(buffer, start, end - start);
+            hashes.add(digest.digest());
+            fileOffset += end - start;
+            offsets = add(offsets, hashes.size(), fileOffset);
+        }
+
+        return new Chunks(Arrays.copyOf(offsets, hashes.size() + 1), hashes.toArray(new byte[0][]));
+    }
+
+    private static long[] add(long[] offsets, int index, long offset) {
+        if (index == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[index] = offset;
+        return offsets;
+    }
+}
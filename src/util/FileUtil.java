@@ -2,18 +2,21 @@ package util;
 
 import main.Main;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtil {
     private static final Path mainDir = Path.of(System.getProperty("user.home"), "Documents", "p2p-test");
     private static Path logFile;
+    private static final LogWriter logWriter = new LogWriter();
     private static Path downloadsDir;
-
-    private static boolean isFilesInitialized = false;
+    private static Path chunksDir;
 
     public static void initFiles() {
         try {
@@ -22,11 +25,13 @@ public class FileUtil {
             downloadsDir = mainDir.resolve("downloads");
             Files.createDirectories(downloadsDir);
 
+            chunksDir = mainDir.resolve("chunks"); // see ChunkStore
+
             logFile = mainDir.resolve("latest.log");
             if (Files.exists(logFile)) Files.delete(logFile); // prevent spam log creation
             Files.createFile(logFile);
+            logWriter.open(logFile);
 
-            isFilesInitialized = true;
             Main.logMain("Files successfully initialized: " + mainDir);
 
         } catch (IOException e) {
@@ -34,21 +39,42 @@ public class FileUtil {
         }
     }
 
+    // queued for the log writer thread, see LogWriter; lines from before initFiles() are written once it opens the file
     public static void writeLog(String logText) {
-        if (!isFilesInitialized) {
-            System.out.println("Attempted to write to log file but files were not initialized: " + logText);
-            return;
-        }
+        logWriter.log(logText);
+    }
 
-        try (BufferedWriter writer = Files.newBufferedWriter(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            writer.write(logText + "\n");
+    public static Path getMainDir() { return mainDir; }
+    public static Path getDownloadsDir() { return downloadsDir; }
+    public static Path getChunksDir() { return chunksDir; }
+
+    // file and chunk digests, see ChunkVerifier and ChunkStore
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every jvm has sha-256
+        }
+    }
 
+    // download targets are created at their full size, chunks are written into place at index * chunk size in
+    // whatever order they arrive. sparse where the filesystem supports it, so space is only taken as chunks land
+    public static FileChannel createTarget(Path target, long size) throws IOException {
+        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (size > 0) channel.write(ByteBuffer.allocate(1), size - 1); // extends it without writing the rest
         } catch (IOException e) {
-            Main.logMain("Error when writing to log: " + e.getMessage());
+            channel.close();
+            throw e;
         }
+        return channel;
     }
 
-    public static Path getDownloadsDir() { return downloadsDir; }
+    // a transfer that cant fit is turned down up front rather than failing partway through
+    public static void checkFreeSpace(Path dir, long bytes) throws IOException {
+        long usable = Files.getFileStore(dir).getUsableSpace();
+        if (bytes > usable) throw new IOException("Not enough disk space, " + getFileSize(bytes) + " needed and " + getFileSize(usable) + " free");
+    }
 
     public static String getFileSize(long size) {
         double value = size;
@@ -62,7 +88,7 @@ public class FileUtil {
             unitIndex++;
         }
 
-        return String.format("%.3g %s", value, units[unitIndex]); // 3sf
+        return threeFigures(value) + " " + units[unitIndex];
     }
 
     public static String getFileSize(double size) {
@@ -76,7 +102,20 @@ public class FileUtil {
             unitIndex++;
         }
 
-        return String.format("%.3g %s", value, units[unitIndex]);
+        return threeFigures(value) + " " + units[unitIndex];
+    }
+
+    // what %.3g gives for 0-1023, without going through a Formatter for every progress line
+    private static String threeFigures(double value) {
+        if (value < 0) return "-" + threeFigures(-value);
+
+        long hundredths = Math.round(value * 100);
+        if (hundredths < 1000) return hundredths / 100 + "." + hundredths / 10 % 10 + hundredths % 10;
+
+        long tenths = Math.round(value * 10);
+        if (tenths < 1000) return tenths / 10 + "." + tenths % 10;
+
+        return Long.toString(Math.round(value));
     }
 
     public static String getFileNameWithTime(String fileName) {
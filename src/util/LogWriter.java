@@ -0,0 +1,173 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class LogWriter {
+    // writes the log file from one thread that keeps it open
+    // log() only puts the line in a ring buffer, so a socket reader logging progress never waits on the disk or
+    // a lock; the writer thread takes everything queued since its last pass and writes it in one go, and once the
+    // file gets too big it becomes latest.1.log (latest.1.log becomes latest.2.log, and so on)
+    // lines are dropped rather than waited for if the writer falls a whole buffer behind, and counted in the file
+
+    private static final int CAPACITY = 8192; // lines, a power of two
+    private static final int BATCH_SIZE = 64 * 1024; //64KB written at a time
+    private static final long MAX_LOG_SIZE = 16 * 1024 * 1024; //16MB
+    private static final int MAX_OLD_LOGS = 3;
+    private static final int CLOSE_WAIT_MILLIS = 1000;
+
+    // many producers, one consumer; a producer claims a slot by moving tail on, then fills it in
+    // the writer only moves head past slots that have been filled in, a claimed but empty one is picked up next pass
+    private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Thread writer;
+    private volatile boolean isWaiting;
+    private volatile boolean isClosing;
+
+    // only used by the writer thread
+    private Path file;
+    private FileChannel channel;
+    private long fileSize;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+
+    // lines logged before this are kept and written once it starts
+    public void open(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+
+        writer = Thread.ofPlatform().name("log-writer").daemon(true).start(this::run);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close)); // whatever is still queued is written on exit
+    }
+
+    public void log(String line) {
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head >= CAPACITY) { // writer is a whole buffer behind
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(claimed, claimed + 1)) {
+                slots.set((int) (claimed & (CAPACITY - 1)), line);
+                break;
+            }
+        }
+
+        if (isWaiting) LockSupport.unpark(writer);
+    }
+
+    private void run() {
+        while (true) {
+            boolean isDrained = drain();
+
+            if (isClosing) {
+                if (isDrained) break;
+                continue;
+            }
+            if (!isDrained) {
+                Thread.onSpinWait(); // a producer has claimed the next slot but not filled it in yet
+                continue;
+            }
+
+            isWaiting = true;
+            if (tail.get() == head && !isClosing) LockSupport.park(this); // checked again after isWaiting, so a line cant slip in unnoticed
+            isWaiting = false;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException _) {}
+    }
+
+    // writes every line queued so far; false if one was claimed but isnt filled in yet
+    private boolean drain() {
+        long end = tail.get();
+        long next = head;
+
+        try {
+            while (next < end) {
+                int slot = (int) (next & (CAPACITY - 1));
+                String line = slots.get(slot);
+                if (line == null) break;
+
+                slots.set(slot, null);
+                append(line);
+                head = ++next;
+            }
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) append(lost + " log line(s) dropped, the log writer fell behind");
+
+            flush();
+            if (fileSize >= MAX_LOG_SIZE) rotate();
+        } catch (IOException e) {
+            System.out.println("Error when writing to log: " + e.getMessage()); // not logged, itd only come back here
+            batch.clear();
+        }
+
+        return next == end;
+    }
+
+    private void append(String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > batch.remaining()) flush();
+
+        if (bytes.length > batch.capacity()) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            batch.put(bytes);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (batch.position() == 0) return;
+
+        write(batch.flip());
+        batch.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer);
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+
+        try {
+            String name = file.getFileName().toString().replaceFirst("\\.log$", "");
+            for (int i = MAX_OLD_LOGS - 1; i >= 1; i--) {
+                Path older = file.resolveSibling(name + "." + i + ".log");
+                if (Files.exists(older)) Files.move(older, file.resolveSibling(name + "." + (i + 1) + ".log"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(file, file.resolveSibling(name + ".1.log"), StandardCopyOption.REPLACE_EXISTING);
+        } finally { // a fresh file if it moved, otherwise the same one carries on
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+        }
+    }
+
+    public void close() {
+        Thread thread = writer;
+        if (thread == null) return;
+
+        isClosing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException _) {}
+    }
+}
@@ -1,19 +1,33 @@
 package util;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 public class MainUtil {
-    public static void log(String logText) {
+    // returns the line as logged, with the time in front
+    public static String log(String logText) {
         String log = getLocalTime() + " | " + logText;
         System.out.println(log);
         FileUtil.writeLog(log);
+        return log;
     }
 
+    // formatted once a second at most, every line logged in the same second reuses it
+    private record Second(long epochSecond, String time) {}
+    private static volatile Second lastSecond = new Second(-1, "");
+
     private static final DateTimeFormatter localTimeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
     public static String getLocalTime() {
-        return LocalTime.now().format(localTimeFormatter);
+        long epochSecond = System.currentTimeMillis() / 1000;
+        Second second = lastSecond;
+        if (second.epochSecond != epochSecond) {
+            second = new Second(epochSecond, LocalTime.ofInstant(Instant.ofEpochSecond(epochSecond), ZoneId.systemDefault()).format(localTimeFormatter));
+            lastSecond = second;
+        }
+        return second.time;
     }
 
     private static final DateTimeFormatter localDateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
@@ -34,6 +48,18 @@ public class MainUtil {
         return port >= 0 && port <= 65535;
     }
 
+    // upload limit from a command, in KB/s; 'off' or 0 for none. null if its not a valid rate
+    public static Long parseRate(String arg) {
+        if (arg.equals("off")) return 0L;
+
+        try {
+            long kilobytes = Long.parseLong(arg);
+            return kilobytes >= 0 && kilobytes <= Long.MAX_VALUE / 1024 ? kilobytes * 1024 : null;
+        } catch (NumberFormatException _) {
+            return null;
+        }
+    }
+
     public static String cmdIndent(String output) {
         String indent = " ".repeat(11); // 11 is the # of spaces used by the time in console logs
         String[] lines = output.split("\n");
@@ -0,0 +1,43 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedFile {
+    // read-only view of a file through a moving memory-mapped window, for big uploads
+    // a chunk is handed out as a slice of the mapping, so reading it is a page-cache access rather than a read()
+    // copying it into a buffer. only one window is mapped at a time; the old one is unmapped once its collected,
+    // java has no way to do it sooner, so windows are big enough that there arent many of them
+
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024; //64MB
+
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public MappedFile(FileChannel channel, long fileSize) {
+        this.channel = channel;
+        this.fileSize = fileSize;
+    }
+
+    // valid until the next call, it can move the window
+    public ByteBuffer slice(long position, int length) throws IOException {
+        if (position + length > fileSize) throw new EOFException("File ended before chunk at " + position);
+
+        if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW_SIZE, length), fileSize - position));
+        }
+
+        return window.slice((int) (position - windowStart), length);
+    }
+
+    public void close() {
+        window = null;
+    }
+}
@@ -0,0 +1,44 @@
+package util;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Scheduler {
+    // every timeout/periodic task (verify, auth, KeepAlive, file request timeouts) shares these threads
+    // instead of each one sleeping in a thread of its own; tasks should be quick
+    // peers track their own tasks and cancel them on close, see Peer.schedule();
+
+    private static final int THREAD_COUNT = 2;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREAD_COUNT, task -> {
+        Thread thread = new Thread(task, "scheduler-" + threadCount.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.setRemoveOnCancelPolicy(true); // cancelled timeouts dont sit in the queue until they would have run
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return executor.schedule(wrap(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static ScheduledFuture<?> scheduleRepeating(Runnable task, long periodMillis) {
+        return executor.scheduleWithFixedDelay(wrap(task), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // an exception would otherwise silently cancel a repeating task
+    private static Runnable wrap(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                MainUtil.log("Error in scheduled task: " + e.getMessage());
+            }
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package util;
+
+public class ThreadUtil {
+    private static volatile boolean useVirtualThreads = false;
+
+    // every per-peer blocking task (socket reader/writer, uploads, timeouts, connecting) is started through here
+    // in virtual mode they run as virtual threads on the jvm's shared carrier pool,
+    // so a peer blocked on a socket read doesnt hold an os thread and its native stack
+    // java 24+ no longer pins virtual threads inside synchronized, so the existing monitors are fine
+
+    public static Thread start(String name, Runnable task) {
+        Thread.Builder builder = useVirtualThreads ? Thread.ofVirtual() : Thread.ofPlatform();
+        return builder.name(name).start(task);
+    }
+
+    // only affects threads started afterwards
+    public static void setVirtualThreads(boolean virtual) {
+        useVirtualThreads = virtual;
+    }
+
+    public static boolean isVirtualThreads() { return useVirtualThreads; }
+}
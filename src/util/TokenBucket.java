@@ -0,0 +1,53 @@
+package util;
+
+public class TokenBucket {
+    // upload rate limit in bytes per second, 0 for none
+    // tokens refill at the rate up to a small burst; sending takes them out and can leave the bucket in debt,
+    // whoever sends next waits until the debt is paid off. a bucket shared by several senders hands them the
+    // link in the order they asked, so none of them gets ahead of the others
+
+    private static final long BURST_NANOS = 100_000_000; // 100ms of the rate can go at once after an idle spell
+    private static final long MIN_BURST = 64 * 1024; //64KB
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    public synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+        tokens = 0; // whatever was owed at the old rate doesnt carry over
+        lastRefill = System.nanoTime();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    // takes the bytes now; returns how long to wait before they go out, 0 if they can go straight away
+    public synchronized long reserve(long bytes) {
+        if (bytesPerSecond == 0) return 0;
+
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : nanosFor(-tokens);
+    }
+
+    // how long until the bucket is out of debt
+    public synchronized long delayNanos() {
+        if (bytesPerSecond == 0) return 0;
+
+        refill();
+        return tokens >= 0 ? 0 : nanosFor(-tokens);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double burst = Math.max(MIN_BURST, bytesPerSecond * BURST_NANOS / 1e9);
+        tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+    }
+
+    private long nanosFor(double bytes) {
+        return (long) (bytes * 1e9 / bytesPerSecond);
+    }
+}